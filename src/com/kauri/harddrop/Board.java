@@ -25,14 +25,55 @@ import java.util.Arrays;
 
 /**
  * A board provides access to the state of the current pile.
+ * <p>
+ * Occupancy is stored as a bitboard with one word per row, where bit <tt>col</tt> of a row word
+ * is set if that cell is filled. The shape of each filled block is kept in a separate color plane
+ * which is only consulted for rendering. Rows of the color plane are reached through a table of
+ * row offsets, so inserting or removing a row only moves row words and offsets rather than the
+ * blocks themselves.
+ * <p>
+ * The height and number of filled blocks of each column, and the total number of holes, are kept
+ * up to date as pieces and rows are added and removed, so they can be queried in constant time.
+ * <p>
+ * Pieces may also be placed through {@link #placePiece}, which clears the completed rows and
+ * records an entry in a journal so that {@link #undoPiece} can revert the board exactly. The
+ * journal storage is reused, so a search can make and unmake placements without allocating.
+ * <p>
+ * The board also maintains a Zobrist hash of its occupancy, so that searches can recognize boards
+ * they have already seen. Boards with the same dimensions and the same filled blocks always have
+ * the same hash.
  *
  * @author Eric Fritz
  */
 public class Board
 {
+	/**
+	 * The maximum number of columns that fit into a single row word.
+	 */
+	public static final int MAX_WIDTH = Long.SIZE;
+
+	private static final Shape[] shapeTypes = Shape.values();
+
 	private int width;
 	private int height;
-	private Shape[] board;
+	private long fullRow;
+	private long[] rows;
+	private byte[] colors;
+	private int[] offsets;
+
+	private int[] heights;
+	private int[] fills;
+	private int holes;
+
+	private long hash;
+
+	private int journalSize = 0;
+	private int clearedSize = 0;
+	private Tetromino[] journalPieces = new Tetromino[8];
+	private int[] journalPositions = new int[16];
+	private int[] journalClears = new int[8];
+	private int[] clearedRows = new int[32];
+	private byte[] clearedColors = new byte[0];
 
 	/**
 	 * Creates a new Board.
@@ -41,10 +82,19 @@ public class Board
 	 * @param height The board height.
 	 */
 	public Board(int width, int height) {
+		if (width < 1 || width > MAX_WIDTH) {
+			throw new IllegalArgumentException("Cannot create board with more than " + MAX_WIDTH + " columns.");
+		}
+
 		this.width = width;
 		this.height = height;
 
-		board = new Shape[width * height];
+		fullRow = -1L >>> (MAX_WIDTH - width);
+		rows = new long[height];
+		colors = new byte[width * height];
+		offsets = new int[height];
+		heights = new int[width];
+		fills = new int[width];
 		clear();
 	}
 
@@ -52,12 +102,26 @@ public class Board
 	 * Remove all blocks from the board.
 	 */
 	public void clear() {
-		Arrays.fill(board, Shape.NoShape);
+		Arrays.fill(rows, 0);
+		Arrays.fill(colors, (byte) Shape.NoShape.ordinal());
+		Arrays.fill(heights, 0);
+
+		for (int row = 0; row < height; row++) {
+			offsets[row] = row * width;
+		}
+
+		Arrays.fill(fills, 0);
+		holes = 0;
+		hash = 0;
+
+		journalSize = 0;
+		clearedSize = 0;
 	}
 
 	/**
 	 * Clone the state of the board. If `fill` is non-null and has the same dimensions, the state
-	 * will be copied into that board instance. Otherwise, a new instance will be created.
+	 * will be copied into that board instance. Otherwise, a new instance will be created. The
+	 * placement journal is not copied, so the filled board cannot undo placements made on this one.
 	 *
 	 * @param fill The board to modify, if possible.
 	 *
@@ -68,7 +132,15 @@ public class Board
 			fill = new Board(width, height);
 		}
 
-		System.arraycopy(board, 0, fill.board, 0, board.length);
+		System.arraycopy(rows, 0, fill.rows, 0, rows.length);
+		System.arraycopy(colors, 0, fill.colors, 0, colors.length);
+		System.arraycopy(offsets, 0, fill.offsets, 0, offsets.length);
+		System.arraycopy(heights, 0, fill.heights, 0, heights.length);
+		System.arraycopy(fills, 0, fill.fills, 0, fills.length);
+		fill.holes = holes;
+		fill.hash = hash;
+		fill.journalSize = 0;
+		fill.clearedSize = 0;
 
 		return fill;
 	}
@@ -96,7 +168,123 @@ public class Board
 	 * @return The tetromino type.
 	 */
 	public Shape getShapeAt(int row, int col) {
-		return board[(row * width) + col];
+		return shapeTypes[colors[offsets[row] + col]];
+	}
+
+	/**
+	 * Determines if the block at the given position is filled.
+	 *
+	 * @param row The row index.
+	 * @param col The column index.
+	 *
+	 * @return <tt>true</tt> if the block is filled, <tt>false</tt> otherwise.
+	 */
+	public boolean isOccupied(int row, int col) {
+		return (rows[row] & (1L << col)) != 0;
+	}
+
+	/**
+	 * Retrieves the occupancy word of a row. Bit <tt>col</tt> is set if the block in that column
+	 * is filled.
+	 *
+	 * @param row The row index.
+	 *
+	 * @return The row occupancy.
+	 */
+	public long getRowMask(int row) {
+		return rows[row];
+	}
+
+	/**
+	 * @return The occupancy word of a completely filled row.
+	 */
+	public long getFullRowMask() {
+		return fullRow;
+	}
+
+	/**
+	 * Retrieves the number of filled blocks in a row.
+	 *
+	 * @param row The row index.
+	 *
+	 * @return The number of filled blocks.
+	 */
+	public int getRowFill(int row) {
+		return Long.bitCount(rows[row]);
+	}
+
+	/**
+	 * Retrieves the height of a column, which is one more than the row index of the highest filled
+	 * block in that column. An empty column has a height of zero.
+	 *
+	 * @param col The column index.
+	 *
+	 * @return The column height.
+	 */
+	public int getColumnHeight(int col) {
+		return heights[col];
+	}
+
+	/**
+	 * Retrieves the number of filled blocks in a column.
+	 *
+	 * @param col The column index.
+	 *
+	 * @return The number of filled blocks.
+	 */
+	public int getColumnFill(int col) {
+		return fills[col];
+	}
+
+	/**
+	 * Retrieves the number of empty blocks in a column which lie below the highest filled block
+	 * of that column.
+	 *
+	 * @param col The column index.
+	 *
+	 * @return The number of holes.
+	 */
+	public int getColumnHoles(int col) {
+		return heights[col] - fills[col];
+	}
+
+	/**
+	 * @return The total number of holes in all columns.
+	 */
+	public int getHoles() {
+		return holes;
+	}
+
+	/**
+	 * @return The Zobrist hash of the filled blocks of the board.
+	 */
+	public long getHash() {
+		return hash;
+	}
+
+	/**
+	 * Determines the change to the hash of this board made by adding the blocks of a tetromino
+	 * onto empty blocks, or by removing them again.
+	 *
+	 * @param piece The tetromino.
+	 * @param xPos  The x-position.
+	 * @param yPos  The y-position.
+	 *
+	 * @return The combined keys of the blocks of the tetromino.
+	 */
+	public long getPieceHash(Tetromino piece, int xPos, int yPos) {
+		long key = 0;
+
+		for (int i = 0; i < piece.getSize(); i++) {
+			int col = xPos + piece.getX(i);
+			int row = yPos - piece.getY(i);
+
+			if (col >= 0 && col < width && row >= 0 && row < height) {
+				key ^= getKey(row, col);
+			}
+		}
+
+		return key;
 	}
 
 	/**
@@ -109,15 +297,19 @@ public class Board
 	 * @return <tt>true</tt> if there is no collision, <tt>false</tt> otherwise.
 	 */
 	public boolean canMove(Tetromino piece, int xPos, int yPos) {
-		for (int i = 0; i < piece.getSize(); i++) {
-			int x = xPos + piece.getX(i);
-			int y = yPos - piece.getY(i);
+		int left = xPos + piece.getMinX();
 
-			if (x < 0 || x >= width || y < 0) {
-				return false;
-			}
+		if (left < 0 || left + piece.getWidth() > width || yPos - piece.getMaxY() < 0) {
+			return false;
+		}
+
+		// Each row of the tetromino is tested against the row of the board it overlaps with a
+		// single mask operation. Rows above the top of the board never collide.
 
-			if (y < height && getShapeAt(y, x) != Shape.NoShape) {
+		for (int i = 0; i < piece.getHeight(); i++) {
+			int y = yPos - piece.getMinY() - i;
+
+			if (y < height && (rows[y] & (piece.getRowMask(i) << left)) != 0) {
 				return false;
 			}
 		}
@@ -147,6 +339,82 @@ public class Board
 		fillTetromino(piece, xPos, yPos, Shape.NoShape);
 	}
 
+	/**
+	 * Adds the blocks of a tetromino onto this board and removes the rows which are completed by
+	 * it. The placement is recorded so that it can be reverted by {@link #undoPiece}. Only the rows
+	 * spanned by the tetromino are checked, as any other full row would have been cleared already.
+	 *
+	 * @param piece The tetromino.
+	 * @param xPos  The x-position.
+	 * @param yPos  The y-position.
+	 *
+	 * @return The number of cleared rows.
+	 */
+	public int placePiece(Tetromino piece, int xPos, int yPos) {
+		if (journalSize == journalPieces.length) {
+			journalPieces = Arrays.copyOf(journalPieces, journalSize * 2);
+			journalPositions = Arrays.copyOf(journalPositions, journalSize * 4);
+			journalClears = Arrays.copyOf(journalClears, journalSize * 2);
+		}
+
+		addPiece(piece, xPos, yPos);
+
+		int clears = 0;
+		for (int row = Math.min(yPos - piece.getMinY(), height - 1); row >= Math.max(yPos - piece.getMaxY(), 0); row--) {
+			if (isRowFull(row)) {
+				if (clearedSize == clearedRows.length) {
+					clearedRows = Arrays.copyOf(clearedRows, clearedSize * 2);
+				}
+
+				if ((clearedSize + 1) * width > clearedColors.length) {
+					clearedColors = Arrays.copyOf(clearedColors, (clearedSize + 1) * width * 2);
+				}
+
+				System.arraycopy(colors, offsets[row], clearedColors, clearedSize * width, width);
+				clearedRows[clearedSize++] = row;
+				removeRow(row);
+				clears++;
+			}
+		}
+
+		journalPieces[journalSize] = piece;
+		journalPositions[journalSize * 2 + 0] = xPos;
+		journalPositions[journalSize * 2 + 1] = yPos;
+		journalClears[journalSize++] = clears;
+
+		return clears;
+	}
+
+	/**
+	 * Reverts the last placement made by {@link #placePiece}. The cleared rows are restored and
+	 * the blocks of the tetromino are removed.
+	 */
+	public void undoPiece() {
+		if (journalSize == 0) {
+			throw new IllegalStateException("Cannot undo placement with an empty journal.");
+		}
+
+		journalSize--;
+
+		// Rows were cleared from the top down, so restoring them from the bottom up will push each
+		// one back to its original row index.
+
+		for (int i = journalClears[journalSize]; i > 0; i--) {
+			int row = clearedRows[--clearedSize];
+			System.arraycopy(clearedColors, clearedSize * width, colors, insertRow(row, fullRow), width);
+		}
+
+		removePiece(journalPieces[journalSize], journalPositions[journalSize * 2 + 0], journalPositions[journalSize * 2 + 1]);
+		journalPieces[journalSize] = null;
+	}
+
+	/**
+	 * @return The number of placements which can be reverted by {@link #undoPiece}.
+	 */
+	public int getJournalSize() {
+		return journalSize;
+	}
+
 	/**
 	 * Determines if a row is filled horizontally.
 	 *
@@ -155,13 +423,7 @@ public class Board
 	 * @return Whether the row is full.
 	 */
 	public boolean isRowFull(int row) {
-		for (int col = 0; col < width; col++) {
-			if (getShapeAt(row, col) == Shape.NoShape) {
-				return false;
-			}
-		}
-
-		return true;
+		return rows[row] == fullRow;
 	}
 
 	/**
@@ -193,28 +455,70 @@ public class Board
 			throw new IllegalArgumentException("Cannot add row to board with non-matching dimensions.");
 		}
 
-		for (int i = height - 1; i > row; i--) {
-			for (int col = 0; col < width; col++) {
-				setShapeAt(i, col, getShapeAt(i - 1, col));
+		long mask = 0;
+		for (int col = 0; col < width; col++) {
+			if (shapes[col] != Shape.NoShape) {
+				mask |= 1L << col;
 			}
 		}
 
+		int offset = insertRow(row, mask);
+
 		for (int col = 0; col < width; col++) {
-			setShapeAt(row, col, shapes[col]);
+			colors[offset + col] = (byte) shapes[col].ordinal();
 		}
 	}
 
 	/**
-	 * Remove a row by collapsing the rows above it down by one.
+	 * Remove a row by collapsing the rows above it down by one. The highest row of the board will
+	 * be left empty.
 	 *
 	 * @param row The row index.
 	 */
 	public void removeRow(int row) {
-		for (int i = row; i < height - 1; i++) {
-			for (int col = 0; col < width; col++) {
-				setShapeAt(i, col, getShapeAt(i + 1, col));
+		subtractFills(rows[row]);
+
+		// Only the blocks of the removed row and of the rows above it change their keys.
+
+		int top = getTop();
+
+		for (int r = row; r < top; r++) {
+			for (long mask = rows[r]; mask != 0; mask &= mask - 1) {
+				int col = Long.numberOfTrailingZeros(mask);
+
+				hash ^= getKey(r, col);
+
+				if (r > row) {
+					hash ^= getKey(r - 1, col);
+				}
+			}
+		}
+
+		int offset = offsets[row];
+
+		System.arraycopy(rows, row + 1, rows, row, height - row - 1);
+		System.arraycopy(offsets, row + 1, offsets, row, height - row - 1);
+
+		rows[height - 1] = 0;
+		offsets[height - 1] = offset;
+		Arrays.fill(colors, offset, offset + width, (byte) Shape.NoShape.ordinal());
+
+		// A column whose highest block lay above the row drops by one. A column whose highest
+		// block lay in the row is stepped down to the next block beneath it.
+
+		for (int col = 0; col < width; col++) {
+			if (heights[col] > row + 1) {
+				heights[col]--;
+			} else if (heights[col] == row + 1) {
+				heights[col] = row;
+
+				while (heights[col] > 0 && !isOccupied(heights[col] - 1, col)) {
+					heights[col]--;
+				}
 			}
 		}
+
+		updateHoles();
 	}
 
 	/**
@@ -273,6 +577,33 @@ public class Board
 		return yPos - diff + 1;
 	}
 
+	/**
+	 * Determines the y-position at which the given piece would come to rest for every x-position
+	 * at which the piece fits horizontally on the board, as if it were dropped from above the pile.
+	 * This combines the height of each column with the lowest block of each column of the piece,
+	 * so every position is computed without stepping the piece down row by row.
+	 * <p>
+	 * The resting y-position for an x-position <tt>x</tt> is stored at <tt>rests[x]</tt>, for all
+	 * values of <tt>x</tt> from <tt>-piece.getMinX()</tt> to <tt>width - 1 - piece.getMaxX()</tt>.
+	 * Other elements of the array are left unmodified.
+	 *
+	 * @param piece The tetromino.
+	 * @param rests The array to fill with resting y-positions.
+	 */
+	public void dropHeights(Tetromino piece, int[] rests) {
+		int minX = piece.getMinX();
+		int pieceWidth = piece.getWidth();
+
+		for (int col = 0; col + pieceWidth <= width; col++) {
+			int rest = Integer.MIN_VALUE;
+			for (int i = 0; i < pieceWidth; i++) {
+				rest = Math.max(rest, heights[col + i] + piece.getBottom(i));
+			}
+
+			rests[col - minX] = rest;
+		}
+	}
+
 	/**
 	 * Determines if the piece can move straight down vertically.
 	 *
@@ -286,6 +617,73 @@ public class Board
 		return canMove(piece, xPos, yPos - 1);
 	}
 
+	/**
+	 * Inserts a row into the board, pushing the rows above it up by one. The caller is responsible
+	 * for filling in the color plane of the new row.
+	 *
+	 * @param row  The row index.
+	 * @param mask The occupancy of the row.
+	 *
+	 * @return The offset of the new row in the color plane.
+	 */
+	private int insertRow(int row, long mask) {
+		subtractFills(rows[height - 1]);
+
+		// Only the blocks of the rows at and above the new row change their keys, and those of the
+		// highest row are pushed off of the board.
+
+		int top = getTop();
+
+		for (int r = row; r < top; r++) {
+			for (long m = rows[r]; m != 0; m &= m - 1) {
+				int col = Long.numberOfTrailingZeros(m);
+
+				hash ^= getKey(r, col);
+
+				if (r + 1 < height) {
+					hash ^= getKey(r + 1, col);
+				}
+			}
+		}
+
+		for (long m = mask; m != 0; m &= m - 1) {
+			int col = Long.numberOfTrailingZeros(m);
+
+			hash ^= getKey(row, col);
+		}
+
+		int offset = offsets[height - 1];
+
+		System.arraycopy(rows, row, rows, row + 1, height - row - 1);
+		System.arraycopy(offsets, row, offsets, row + 1, height - row - 1);
+
+		rows[row] = mask;
+		offsets[row] = offset;
+
+		for (long m = mask; m != 0; m &= m - 1) {
+			fills[Long.numberOfTrailingZeros(m)]++;
+		}
+
+		// A column with a block at or above the row rises by one, unless its highest block was
+		// pushed off of the board, in which case it is stepped down to the next block beneath.
+
+		for (int col = 0; col < width; col++) {
+			if (heights[col] == height) {
+				while (heights[col] > 0 && !isOccupied(heights[col] - 1, col)) {
+					heights[col]--;
+				}
+			} else if (heights[col] > row) {
+				heights[col]++;
+			} else if ((mask & (1L << col)) != 0) {
+				heights[col] = row + 1;
+			}
+		}
+
+		updateHoles();
+
+		return offset;
+	}
+
 	/**
 	 * Updates the block type at the given position.
 	 *
@@ -294,7 +692,13 @@ public class Board
 	 * @param type The tetromino type.
 	 */
 	private void setShapeAt(int row, int col, Shape type) {
-		board[(row * width) + col] = type;
+		colors[offsets[row] + col] = (byte) type.ordinal();
+
+		if (type == Shape.NoShape) {
+			rows[row] &= ~(1L << col);
+		} else {
+			rows[row] |= 1L << col;
+		}
 	}
 
 	/**
@@ -311,8 +715,92 @@ public class Board
 			int row = yPos - piece.getY(i);
 
 			if (col >= 0 && col < width && row >= 0 && row < height) {
+				boolean occupied = isOccupied(row, col);
 				setShapeAt(row, col, shape);
+
+				if (occupied != (shape != Shape.NoShape)) {
+					updateColumn(col, row, !occupied);
+
+					hash ^= getKey(row, col);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the statistics of a column after a single block has been filled or emptied.
+	 *
+	 * @param col    The column index.
+	 * @param row    The row index of the modified block.
+	 * @param filled Whether the block was filled or emptied.
+	 */
+	private void updateColumn(int col, int row, boolean filled) {
+		holes -= heights[col] - fills[col];
+
+		if (filled) {
+			fills[col]++;
+			heights[col] = Math.max(heights[col], row + 1);
+		} else {
+			fills[col]--;
+
+			if (heights[col] == row + 1) {
+				while (heights[col] > 0 && !isOccupied(heights[col] - 1, col)) {
+					heights[col]--;
+				}
 			}
 		}
+
+		holes += heights[col] - fills[col];
+	}
+
+	/**
+	 * Decrements the fill count of every column whose block is set in the given row word.
+	 *
+	 * @param mask The row occupancy.
+	 */
+	private void subtractFills(long mask) {
+		while (mask != 0) {
+			fills[Long.numberOfTrailingZeros(mask)]--;
+			mask &= mask - 1;
+		}
+	}
+
+	/**
+	 * @return The height of the highest column.
+	 */
+	private int getTop() {
+		int top = 0;
+		for (int col = 0; col < width; col++) {
+			top = Math.max(top, heights[col]);
+		}
+
+		return top;
+	}
+
+	/**
+	 * Recomputes the total number of holes from the height and the fill count of every column.
+	 */
+	private void updateHoles() {
+		holes = 0;
+		for (int col = 0; col < width; col++) {
+			holes += heights[col] - fills[col];
+		}
+	}
+
+	/**
+	 * Retrieves the Zobrist key of a block. Rather than storing a table of random keys, the key is
+	 * derived by mixing the position of the block, so boards of the same dimensions share keys.
+	 *
+	 * @param row The row index.
+	 * @param col The column index.
+	 *
+	 * @return The key.
+	 */
+	private static long getKey(int row, int col) {
+		long z = (row * (long) MAX_WIDTH + col + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+
+		return z ^ (z >>> 31);
 	}
 }
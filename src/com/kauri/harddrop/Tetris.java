@@ -23,9 +23,17 @@ package com.kauri.harddrop;
 
 import com.kauri.harddrop.GameContext.State;
 import com.kauri.harddrop.ai.AI;
+import com.kauri.harddrop.ai.AnytimeEvaluator;
+import com.kauri.harddrop.ai.BeamSearchEvaluator;
 import com.kauri.harddrop.ai.Evolution;
+import com.kauri.harddrop.ai.ExpectimaxEvaluator;
 import com.kauri.harddrop.ai.MoveEvaluator;
+import com.kauri.harddrop.ai.Network;
+import com.kauri.harddrop.ai.ParallelMoveEvaluator;
+import com.kauri.harddrop.ai.PerfectClearEvaluator;
+import com.kauri.harddrop.ai.RolloutEvaluator;
 import com.kauri.harddrop.ai.ScoringSystem;
+import com.kauri.harddrop.ai.TranspositionTable;
 import com.kauri.harddrop.sequence.LinePieceSelector;
 import com.kauri.harddrop.sequence.PieceSelector;
 import com.kauri.harddrop.sequence.PieceSequence;
@@ -39,7 +47,10 @@ import java.awt.Graphics;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferStrategy;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import javax.swing.ButtonGroup;
 import javax.swing.JCheckBoxMenuItem;
@@ -66,7 +77,15 @@ public class Tetris extends Canvas implements Runnable
 	private JFrame frame;
 	private ScoringSystem scoring = new ScoringSystem();
 	private MoveEvaluator evaluator = new MoveEvaluator(scoring);
+	private MoveEvaluator parallelEvaluator = new ParallelMoveEvaluator(scoring);
+	private BeamSearchEvaluator beamEvaluator = new BeamSearchEvaluator(scoring, 3, 16);
+	private MoveEvaluator expectimaxEvaluator = new ExpectimaxEvaluator(scoring, context);
+	private MoveEvaluator anytimeEvaluator = new AnytimeEvaluator(scoring, 4);
+	private MoveEvaluator rolloutEvaluator = new RolloutEvaluator(scoring);
+	private MoveEvaluator perfectClearEvaluator = new PerfectClearEvaluator(evaluator);
+	private TranspositionTable table = new TranspositionTable(18);
 	private Evolution evo = new Evolution(scoring);
+	private Network network = loadNetwork("ainetwork.txt");
 
 	private UI ui = new UI(context);
 	private AI ai = new AI(context, evaluator);
@@ -75,6 +94,9 @@ public class Tetris extends Canvas implements Runnable
 	public Tetris() {
 		this.addKeyListener(player);
 		this.addComponentListener(ui);
+
+		evaluator.setReachabilityEnabled(true);
+		evaluator.setPruningEnabled(true);
 	}
 
 	public void start() {
@@ -127,6 +149,10 @@ public class Tetris extends Canvas implements Runnable
 			}
 		}
 
+		// Settings changed from the menus take effect here, where no search is running.
+
+		ai.applyChanges();
+
 		if (context.getState() == State.PLAYING) {
 			if (ai.isEnabled()) {
 				ai.update();
@@ -153,7 +179,7 @@ public class Tetris extends Canvas implements Runnable
 	}
 
 	private void buildMenu(final JFrame frame) {
-		context.registerNewGameListener(evo::updateScoring);
+		context.registerNewGameListener(() -> ai.invokeBetweenMoves(evo::updateScoring));
 
 		context.registerEndGameListener(() -> {
 			if (ai.isTraining()) {
@@ -236,6 +262,11 @@ public class Tetris extends Canvas implements Runnable
 	private JMenu buildAiMenu() {
 		JMenuItem aiEnabledItem;
 		JMenuItem evolveItem;
+		JMenuItem cacheItem;
+		JMenuItem reachItem;
+		JMenuItem ponderItem;
+		JMenuItem pruneItem;
+		JMenuItem networkItem;
 
 		aiEnabledItem = new JCheckBoxMenuItem();
 		aiEnabledItem.setText("Enabled");
@@ -246,14 +277,81 @@ public class Tetris extends Canvas implements Runnable
 		evolveItem.setText("Train/Evolve");
 		evolveItem.addActionListener((e) -> ai.setTraining(((JMenuItem) e.getSource()).isSelected()));
 
+		cacheItem = new JCheckBoxMenuItem();
+		cacheItem.setText("Cache Positions");
+		cacheItem.addActionListener((e) -> {
+			boolean selected = ((JMenuItem) e.getSource()).isSelected();
+
+			ai.invokeBetweenMoves(() -> {
+				table.clear();
+				evaluator.setTranspositionTable(selected ? table : null);
+			});
+		});
+
+		reachItem = new JCheckBoxMenuItem();
+		reachItem.setText("Tucks and Spins");
+		reachItem.setSelected(evaluator.isReachabilityEnabled());
+		reachItem.addActionListener((e) -> {
+			boolean selected = ((JMenuItem) e.getSource()).isSelected();
+			ai.invokeBetweenMoves(() -> evaluator.setReachabilityEnabled(selected));
+		});
+
+		pruneItem = new JCheckBoxMenuItem();
+		pruneItem.setText("Prune Search");
+		pruneItem.setSelected(evaluator.isPruningEnabled());
+		pruneItem.addActionListener((e) -> {
+			boolean selected = ((JMenuItem) e.getSource()).isSelected();
+			ai.invokeBetweenMoves(() -> evaluator.setPruningEnabled(selected));
+		});
+
+		ponderItem = new JCheckBoxMenuItem();
+		ponderItem.setText("Think Ahead");
+		ponderItem.setSelected(ai.isPondering());
+		ponderItem.addActionListener((e) -> ai.setPondering(((JMenuItem) e.getSource()).isSelected()));
+
+		networkItem = new JCheckBoxMenuItem();
+		networkItem.setText("Neural Scoring");
+		networkItem.setEnabled(network != null);
+		networkItem.addActionListener((e) -> {
+			boolean selected = ((JMenuItem) e.getSource()).isSelected();
+			ai.invokeBetweenMoves(() -> scoring.setNetwork(selected ? network : null));
+		});
+
 		JMenu menu = new JMenu("AI");
 		menu.add(aiEnabledItem);
 		menu.add(evolveItem);
 		menu.add(buildSpeedMenu());
+		menu.add(ponderItem);
+		menu.addSeparator();
+		menu.add(buildSearchMenu());
+		menu.add(buildBeamDepthMenu());
+		menu.add(buildBeamWidthMenu());
+		menu.add(cacheItem);
+		menu.add(reachItem);
+		menu.add(pruneItem);
+		menu.add(networkItem);
 
 		return menu;
 	}
 
+	/**
+	 * Loads the network trained offline for scoring boards, if there is one.
+	 *
+	 * @param filename The name of the file.
+	 *
+	 * @return The network, or <tt>null</tt> if it could not be loaded.
+	 */
+	private static Network loadNetwork(String filename) {
+		try {
+			return Network.load(filename);
+		} catch (FileNotFoundException e) {
+			return null;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			return null;
+		}
+	}
+
 	private JMenu buildHelpMenu() {
 		JMenuItem aboutItem;
 
@@ -293,7 +391,7 @@ public class Tetris extends Canvas implements Runnable
 		selectors.put("Shuffle", new ShufflePieceSelector());
 		selectors.put("Line", new LinePieceSelector());
 		selectors.put("SZ", new SZPieceSelector());
-		selectors.put("Worst", new WorstPieceSelector(context, evaluator));
+		selectors.put("Worst", new WorstPieceSelector(context, new MoveEvaluator(scoring)));
 
 		for (Map.Entry<String, PieceSelector> entry : selectors.entrySet()) {
 			createSelectorItem(menu, group, entry.getValue(), entry.getKey());
@@ -313,6 +411,50 @@ public class Tetris extends Canvas implements Runnable
 		return speedMenu;
 	}
 
+	private JMenu buildSearchMenu() {
+		JMenu menu = new JMenu("Search");
+		ButtonGroup group = new ButtonGroup();
+
+		Map<String, MoveEvaluator> evaluators = new LinkedHashMap<>();
+		evaluators.put("Exhaustive", evaluator);
+		evaluators.put("Parallel", parallelEvaluator);
+		evaluators.put("Beam", beamEvaluator);
+		evaluators.put("Expectimax", expectimaxEvaluator);
+		evaluators.put("Anytime", anytimeEvaluator);
+		evaluators.put("Rollout", rolloutEvaluator);
+		evaluators.put("Perfect Clear", perfectClearEvaluator);
+
+		for (Map.Entry<String, MoveEvaluator> entry : evaluators.entrySet()) {
+			createSearchItem(menu, group, entry.getValue(), entry.getKey());
+		}
+
+		return menu;
+	}
+
+	private JMenu buildBeamDepthMenu() {
+		JMenu menu = new JMenu("Beam Depth");
+		ButtonGroup group = new ButtonGroup();
+
+		for (int i = 2; i <= 6; i++) {
+			final int depth = i;
+			createRadioItem(menu, group, "Depth " + depth, depth == beamEvaluator.getDepth(), () -> ai.invokeBetweenMoves(() -> beamEvaluator.setDepth(depth)));
+		}
+
+		return menu;
+	}
+
+	private JMenu buildBeamWidthMenu() {
+		JMenu menu = new JMenu("Beam Width");
+		ButtonGroup group = new ButtonGroup();
+
+		for (int i = 2; i <= 6; i++) {
+			final int width = (int) Math.pow(2, i);
+			createRadioItem(menu, group, "Width " + width, width == beamEvaluator.getWidth(), () -> ai.invokeBetweenMoves(() -> beamEvaluator.setWidth(width)));
+		}
+
+		return menu;
+	}
+
 	private void createBoardSizeItem(JMenu menu, ButtonGroup group, final int width) {
 		JMenuItem item = new JRadioButtonMenuItem();
 		item.addActionListener((e) -> {
@@ -355,6 +497,20 @@ public class Tetris extends Canvas implements Runnable
 		item.setText("Speed " + delay);
 	}
 
+	private void createSearchItem(JMenu menu, ButtonGroup group, final MoveEvaluator evaluator, final String label) {
+		createRadioItem(menu, group, label, evaluator == ai.getEvaluator(), () -> ai.invokeBetweenMoves(() -> ai.setEvaluator(evaluator)));
+	}
+
+	private void createRadioItem(JMenu menu, ButtonGroup group, String label, boolean selected, Runnable action) {
+		JMenuItem item = new JRadioButtonMenuItem();
+		item.addActionListener((e) -> action.run());
+		item.setSelected(selected);
+
+		menu.add(item);
+		group.add(item);
+		item.setText(label);
+	}
+
 	public static void main(String[] args) {
 		new Tetris().start();
 	}
@@ -22,63 +22,190 @@
 package com.kauri.harddrop;
 
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 /**
  * A tetromino is a geometric shape composed of four squares, connected orthogonally.
  * <p>
- * A tetromino is immutable and privately created. To reference a new tetromino, use the map of
- * pre-constructed one-sided {@link Tetromino#tetrominoes tetrominoes}.
+ * A tetromino is immutable and privately created. To reference a new tetromino, use the array of
+ * pre-constructed one-sided {@link Tetromino#tetrominoes tetrominoes}. All four rotations of every
+ * tetromino are constructed when this class is initialized, along with tables describing their
+ * geometry, so rotating a tetromino or querying its extents never computes anything and is safe to
+ * do from any thread.
  *
  * @author Eric Fritz
  */
 public class Tetromino
 {
 	/**
-	 * A map of all seven pre-constructed one-sided tetrominoes.
+	 * The number of distinct rotations of a tetromino.
 	 */
-	public static Map<Shape, Tetromino> tetrominoes = new HashMap<>();
+	public static final int ROTATIONS = 4;
 
-	static {
-		tetrominoes.put(Shape.I, new Tetromino(Shape.I, new Point(-2, +0), new Point(-1, +0), new Point(+0, +0), new Point(+1, +0)));
-		tetrominoes.put(Shape.J, new Tetromino(Shape.J, new Point(+1, +1), new Point(+1, +0), new Point(+0, +0), new Point(-1, +0)));
-		tetrominoes.put(Shape.L, new Tetromino(Shape.L, new Point(-1, +1), new Point(-1, +0), new Point(+0, +0), new Point(+1, +0)));
-		tetrominoes.put(Shape.O, new Tetromino(Shape.O, new Point(+0, +0), new Point(+1, +0), new Point(+0, +1), new Point(+1, +1)));
-		tetrominoes.put(Shape.S, new Tetromino(Shape.S, new Point(+1, +0), new Point(+0, +0), new Point(+0, +1), new Point(-1, +1)));
-		tetrominoes.put(Shape.T, new Tetromino(Shape.T, new Point(-1, +0), new Point(+0, +0), new Point(+1, +0), new Point(+0, +1)));
-		tetrominoes.put(Shape.Z, new Tetromino(Shape.Z, new Point(+0, +0), new Point(-1, +0), new Point(+1, +1), new Point(+0, +1)));
-	}
+	/**
+	 * The rotations of every tetromino, indexed by shape ordinal and then by rotation index. The
+	 * rows of shapes which are not tetrominoes are <tt>null</tt>.
+	 */
+	private static final Tetromino[][] rotations = new Tetromino[Shape.values().length][];
 
 	/**
-	 * A lazily-filled cache of the clockwise-rotation of tetrominoes.
+	 * The offsets, as (x, y) pairs, tried in order when a rotated tetromino collides with the board.
+	 * The first offset which fits is used, and the rotation fails if none do. The y-offsets follow
+	 * the board, so a negative offset kicks the tetromino down into a gap beneath an overhang.
 	 */
-	private static Map<Tetromino, Tetromino> rotationCache = new HashMap<>();
+	private static final int[] kicks = {0, 0, -1, 0, +1, 0, 0, -1, -1, -1, +1, -1, 0, +1};
 
 	/**
-	 * Point comparator for x-values.
+	 * The kick offsets of the I tetromino, which can also be kicked two columns away from a wall.
 	 */
-	private static Comparator<Point> xComparator = (p1, p2) -> p1.x == p2.x ? 0 : (p1.x < p2.x ? -1 : 1);
+	private static final int[] longKicks = {0, 0, -1, 0, +1, 0, -2, 0, +2, 0, 0, -1, -1, -1, +1, -1, 0, +1};
+
 	/**
-	 * Point comparator for y-values.
+	 * All seven pre-constructed one-sided tetrominoes, in the declaration order of their shapes.
 	 */
-	private static Comparator<Point> yComparator = (p1, p2) -> p1.y == p2.y ? 0 : (p1.y < p2.y ? -1 : 1);
+	public static final Tetromino[] tetrominoes = {
+		create(Shape.I, new Point(-2, +0), new Point(-1, +0), new Point(+0, +0), new Point(+1, +0)),
+		create(Shape.J, new Point(+1, +1), new Point(+1, +0), new Point(+0, +0), new Point(-1, +0)),
+		create(Shape.L, new Point(-1, +1), new Point(-1, +0), new Point(+0, +0), new Point(+1, +0)),
+		create(Shape.O, new Point(+0, +0), new Point(+1, +0), new Point(+0, +1), new Point(+1, +1)),
+		create(Shape.S, new Point(+1, +0), new Point(+0, +0), new Point(+0, +1), new Point(-1, +1)),
+		create(Shape.T, new Point(-1, +0), new Point(+0, +0), new Point(+1, +0), new Point(+0, +1)),
+		create(Shape.Z, new Point(+0, +0), new Point(-1, +0), new Point(+1, +1), new Point(+0, +1)),
+	};
+
+	private final Shape shape;
+	private final int rotation;
+
+	private final int[] xs;
+	private final int[] ys;
+
+	private final int minX;
+	private final int maxX;
+	private final int minY;
+	private final int maxY;
+
+	private final int[] bottom;
+	private final int[] top;
+	private final long[] rowMasks;
 
-	private Shape shape;
-	private List<Point> points;
+	/**
+	 * The lowest rotation index of this shape which occupies the same cells, up to translation.
+	 * This is assigned once all rotations of the shape are constructed.
+	 */
+	private int footprint;
 
 	/**
 	 * Creates a new Tetromino.
 	 *
-	 * @param shape  The tetromino shape.
-	 * @param points The points composing the tetromino.
+	 * @param shape    The tetromino shape.
+	 * @param rotation The rotation index.
+	 * @param points   The points composing the tetromino.
 	 */
-	private Tetromino(Shape shape, Point... points) {
+	private Tetromino(Shape shape, int rotation, Point... points) {
 		this.shape = shape;
-		this.points = Arrays.asList(points);
+		this.rotation = rotation;
+
+		xs = new int[points.length];
+		ys = new int[points.length];
+
+		int minX = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxY = Integer.MIN_VALUE;
+
+		for (int i = 0; i < points.length; i++) {
+			xs[i] = points[i].x;
+			ys[i] = points[i].y;
+
+			minX = Math.min(minX, xs[i]);
+			maxX = Math.max(maxX, xs[i]);
+			minY = Math.min(minY, ys[i]);
+			maxY = Math.max(maxY, ys[i]);
+		}
+
+		this.minX = minX;
+		this.maxX = maxX;
+		this.minY = minY;
+		this.maxY = maxY;
+
+		bottom = new int[maxX - minX + 1];
+		top = new int[maxX - minX + 1];
+		rowMasks = new long[maxY - minY + 1];
+
+		for (int i = 0; i < bottom.length; i++) {
+			bottom[i] = Integer.MIN_VALUE;
+			top[i] = Integer.MAX_VALUE;
+		}
+
+		for (int i = 0; i < points.length; i++) {
+			bottom[xs[i] - minX] = Math.max(bottom[xs[i] - minX], ys[i]);
+			top[xs[i] - minX] = Math.min(top[xs[i] - minX], ys[i]);
+			rowMasks[ys[i] - minY] |= 1L << (xs[i] - minX);
+		}
+	}
+
+	/**
+	 * Constructs all rotations of a tetromino and registers them in the rotation table.
+	 *
+	 * @param shape  The tetromino shape.
+	 * @param points The points composing the unrotated tetromino.
+	 *
+	 * @return The unrotated tetromino.
+	 */
+	private static Tetromino create(Shape shape, Point... points) {
+		Tetromino[] r = new Tetromino[ROTATIONS];
+		r[0] = new Tetromino(shape, 0, points);
+
+		for (int i = 1; i < ROTATIONS; i++) {
+			if (shape == Shape.O) {
+				r[i] = r[0];
+				continue;
+			}
+
+			Point[] rotated = new Point[points.length];
+			for (int j = 0; j < points.length; j++) {
+				rotated[j] = new Point(-points[j].y, points[j].x);
+			}
+
+			points = rotated;
+			r[i] = new Tetromino(shape, i, points);
+		}
+
+		for (int i = 0; i < ROTATIONS; i++) {
+			r[i].footprint = i;
+
+			for (int j = 0; j < i; j++) {
+				if (Arrays.equals(r[i].rowMasks, r[j].rowMasks)) {
+					r[i].footprint = j;
+					break;
+				}
+			}
+		}
+
+		rotations[shape.ordinal()] = r;
+		return r[0];
+	}
+
+	/**
+	 * Retrieves the unrotated tetromino of the given shape.
+	 *
+	 * @param shape The tetromino shape.
+	 *
+	 * @return The tetromino.
+	 */
+	public static Tetromino get(Shape shape) {
+		return rotations[shape.ordinal()][0];
+	}
+
+	/**
+	 * Retrieves a rotation of the tetromino of the given shape.
+	 *
+	 * @param shape    The tetromino shape.
+	 * @param rotation The number of clockwise rotations from the pre-constructed tetromino.
+	 *
+	 * @return The tetromino.
+	 */
+	public static Tetromino get(Shape shape, int rotation) {
+		return rotations[shape.ordinal()][rotation & (ROTATIONS - 1)];
 	}
 
 	/**
@@ -88,11 +215,30 @@ public class Tetromino
 		return shape;
 	}
 
+	/**
+	 * @return The number of clockwise rotations from the pre-constructed tetromino.
+	 */
+	public int getRotation() {
+		return rotation;
+	}
+
+	/**
+	 * Determines which rotation of this shape occupies the same cells as this rotation, up to a
+	 * translation. The O tetromino has a single footprint, the I, S and Z tetrominoes have two,
+	 * and the others have four. Two placements of a shape which have the same footprint and whose
+	 * bounding boxes share a corner occupy the same cells.
+	 *
+	 * @return The lowest rotation index with the same footprint.
+	 */
+	public int getFootprint() {
+		return footprint;
+	}
+
 	/**
 	 * @return The number of points stored in the tetromino.
 	 */
 	public int getSize() {
-		return points.size();
+		return xs.length;
 	}
 
 	/**
@@ -103,7 +249,7 @@ public class Tetromino
 	 * @return The x-position.
 	 */
 	public int getX(int i) {
-		return points.get(i).x;
+		return xs[i];
 	}
 
 	/**
@@ -114,75 +260,126 @@ public class Tetromino
 	 * @return The y-position.
 	 */
 	public int getY(int i) {
-		return points.get(i).y;
+		return ys[i];
 	}
 
 	/**
 	 * @return The x-component value of the point with the smallest x-component.
 	 */
 	public int getMinX() {
-		return Collections.min(points, xComparator).x;
+		return minX;
 	}
 
 	/**
 	 * @return The x-component value of the point with the largest x-component.
 	 */
 	public int getMaxX() {
-		return Collections.max(points, xComparator).x;
+		return maxX;
 	}
 
 	/**
 	 * @return The y-component value of the point with the smallest y-component.
 	 */
 	public int getMinY() {
-		return Collections.min(points, yComparator).y;
+		return minY;
 	}
 
 	/**
 	 * @return The y-component value of the point with the largest y-component.
 	 */
 	public int getMaxY() {
-		return Collections.max(points, yComparator).y;
+		return maxY;
 	}
 
 	/**
 	 * @return The number of horizontal blocks the tetromino occupies.
 	 */
 	public int getWidth() {
-		return Math.abs(getMinX()) + Math.abs(getMaxX()) + 1;
+		return maxX - minX + 1;
 	}
 
 	/**
 	 * @return The number of vertical blocks the tetromino occupies.
 	 */
 	public int getHeight() {
-		return Math.abs(getMinY()) + Math.abs(getMaxY()) + 1;
+		return maxY - minY + 1;
 	}
 
 	/**
-	 * Creates a tetromino which is a clockwise transformation of <tt>original</tt>.
+	 * Retrieves the largest y-component of the points in a column of the tetromino. As rows are
+	 * counted downwards from the tetromino's origin, this is the lowest block of that column.
 	 *
-	 * @param original The tetromino to transform.
+	 * @param i The column index, relative to the column of the smallest x-component.
 	 *
-	 * @return A new tetromino.
+	 * @return The y-component of the lowest block.
 	 */
-	public static Tetromino rotateClockwise(Tetromino original) {
-		if (original.shape == Shape.O) {
-			return original;
-		}
+	public int getBottom(int i) {
+		return bottom[i];
+	}
 
-		if (!rotationCache.containsKey(original)) {
-			Point[] points = new Point[original.getSize()];
+	/**
+	 * Retrieves the smallest y-component of the points in a column of the tetromino. As rows are
+	 * counted downwards from the tetromino's origin, this is the highest block of that column.
+	 *
+	 * @param i The column index, relative to the column of the smallest x-component.
+	 *
+	 * @return The y-component of the highest block.
+	 */
+	public int getTop(int i) {
+		return top[i];
+	}
 
-			int i = 0;
-			for (Point p : original.points) {
-				points[i++] = new Point(-p.y, p.x);
-			}
+	/**
+	 * Retrieves the blocks in a row of the tetromino as a bit mask. Bit <tt>j</tt> is set if the
+	 * tetromino has a block in the column <tt>j</tt> places to the right of its smallest
+	 * x-component.
+	 *
+	 * @param i The row index, relative to the row of the smallest y-component.
+	 *
+	 * @return The row mask.
+	 */
+	public long getRowMask(int i) {
+		return rowMasks[i];
+	}
 
-			rotationCache.put(original, new Tetromino(original.shape, points));
-		}
+	/**
+	 * @return The number of offsets tried when rotating into this tetromino.
+	 */
+	public int getKickCount() {
+		return (shape == Shape.I ? longKicks : kicks).length / 2;
+	}
 
-		return rotationCache.get(original);
+	/**
+	 * Retrieves the horizontal component of a kick offset.
+	 *
+	 * @param i The index of the offset, in the order in which the offsets are tried.
+	 *
+	 * @return The x-offset.
+	 */
+	public int getKickX(int i) {
+		return (shape == Shape.I ? longKicks : kicks)[2 * i];
+	}
+
+	/**
+	 * Retrieves the vertical component of a kick offset, in board rows.
+	 *
+	 * @param i The index of the offset, in the order in which the offsets are tried.
+	 *
+	 * @return The y-offset.
+	 */
+	public int getKickY(int i) {
+		return (shape == Shape.I ? longKicks : kicks)[2 * i + 1];
+	}
+
+	/**
+	 * Creates a tetromino which is a clockwise transformation of <tt>original</tt>.
+	 *
+	 * @param original The tetromino to transform.
+	 *
+	 * @return A new tetromino.
+	 */
+	public static Tetromino rotateClockwise(Tetromino original) {
+		return rotations[original.shape.ordinal()][(original.rotation + 1) & (ROTATIONS - 1)];
 	}
 
 	/**
@@ -193,44 +390,18 @@ public class Tetromino
 	 * @return A new tetromino.
 	 */
 	public static Tetromino rotateCounterClockwise(Tetromino original) {
-		return rotateClockwise(rotateClockwise(rotateClockwise(original)));
+		return rotations[original.shape.ordinal()][(original.rotation + ROTATIONS - 1) & (ROTATIONS - 1)];
 	}
 
 	@Override
 	public int hashCode() {
-		int result = shape.hashCode();
-
-		for (int i = 0; i < this.getSize(); i++) {
-			result = 31 * result + this.getX(i);
-			result = 31 * result + this.getY(i);
-		}
-
-		return result;
+		return shape.ordinal() * ROTATIONS + rotation;
 	}
 
 	@Override
 	public boolean equals(Object obj) {
-		if (this == obj) {
-			return true;
-		}
-
-		if (obj == null || this.getClass() != obj.getClass()) {
-			return false;
-		}
-
-		Tetromino other = (Tetromino) obj;
-
-		if (this.shape != other.shape || this.getSize() != other.getSize()) {
-			return false;
-		}
-
-		for (int i = 0; i < getSize(); i++) {
-			if (this.getX(i) != other.getX(i) || this.getY(i) != other.getY(i)) {
-				return false;
-			}
-		}
-
-		return true;
+		// Every rotation of every tetromino is constructed exactly once.
+		return this == obj;
 	}
 
 	/**
@@ -21,15 +21,26 @@
 
 package com.kauri.harddrop.ai;
 
+import com.kauri.harddrop.Board;
 import com.kauri.harddrop.GameContext;
+import com.kauri.harddrop.Tetromino;
+import com.kauri.harddrop.ai.MoveGenerator.Input;
 import com.kauri.harddrop.command.Command;
 import com.kauri.harddrop.command.HardDropCommand;
 import com.kauri.harddrop.command.MoveLeftCommand;
 import com.kauri.harddrop.command.MoveRightCommand;
 import com.kauri.harddrop.command.RotateClockwiseCommand;
+import com.kauri.harddrop.command.RotateCounterClockwiseCommand;
 import com.kauri.harddrop.command.SoftDropCommand;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Eric Fritz
@@ -42,9 +53,42 @@ public class AI
 	private Queue<Command> commands = new LinkedList<>();
 
 	private int delay = 128;
+	private long budget = 0;
 	private boolean enabled = false;
 	private boolean training = false;
 	private MoveEvaluator evaluator;
+	private Move move = new Move(Double.NEGATIVE_INFINITY, 0, 0);
+	private List<Tetromino> pieces = new ArrayList<>();
+	private List<Input> inputs = new ArrayList<>();
+
+	/**
+	 * The next move is decided on this thread while the current piece is animated, from the board
+	 * the current piece is predicted to leave behind.
+	 */
+	private ExecutorService ponderer = Executors.newSingleThreadExecutor((runnable) -> {
+		Thread thread = new Thread(runnable, "ponder");
+		thread.setDaemon(true);
+
+		return thread;
+	});
+
+	private boolean pondering = true;
+	private Future<?> ponder;
+	private MoveEvaluator ponderEvaluator;
+	private Board ponderBoard;
+	private long ponderHash;
+	private int ponderX;
+	private int ponderY;
+	private List<Tetromino> ponderPieces = new ArrayList<>();
+	private Move ponderMove = new Move(Double.NEGATIVE_INFINITY, 0, 0);
+	private int ponderHits;
+	private int ponderMisses;
+
+	/**
+	 * Changes to the settings of the searches, made from other threads, which wait until no search
+	 * is running.
+	 */
+	private Queue<Runnable> changes = new ConcurrentLinkedQueue<>();
 
 	public AI(GameContext context, MoveEvaluator evaluator) {
 		this.context = context;
@@ -58,53 +102,290 @@ public class AI
 			lastUpdate = time;
 
 			if (commands.size() == 0) {
-				int x1 = context.getX();
-				int y1 = context.getY();
-				int x2 = context.getBoard().getSpawnX(context.getPreview());
-				int y2 = context.getBoard().getSpawnY(context.getPreview());
-
-				Move move = evaluator.getNextMove(context.getBoard(), context.getCurrent(), x1, y1, context.getPreview(), x2, y2);
-
-				int rDelta = move.getRotationDelta();
-				int mDelta = move.getMovementDelta();
-
-				int currX = context.getBoard().getSpawnX(context.getCurrent()) + mDelta;
-				int currY = context.getBoard().getSpawnY(context.getCurrent());
-
-				while (rDelta != 0 || mDelta != 0) {
-					if (rDelta > 0) {
-						rDelta--;
-						commands.add(new RotateClockwiseCommand(context));
-					} else if (mDelta < 0) {
-						mDelta++;
-						commands.add(new MoveLeftCommand(context));
-					} else if (mDelta > 0) {
-						mDelta--;
-						commands.add(new MoveRightCommand(context));
-					}
+				pieces.clear();
+				pieces.add(context.getCurrent());
+
+				for (int i = 1; i < evaluator.getLookahead() && context.getSequence().canPeek(i); i++) {
+					pieces.add(context.getSequence().peek(i));
 				}
 
-				if (delay > 1) {
-					while (context.getBoard().isFalling(context.getCurrent(), currX, currY--)) {
-						commands.add(new SoftDropCommand(context));
+				if (!takePonder()) {
+					// A decision may take as long as the pause before the next update, so that
+					// searches which can be cut short never hold up the game.
+
+					evaluator.setDeadline(System.nanoTime() + getTimeLimit() * 1000000);
+					evaluator.setCandidates(context.getSequence().getCandidates(pieces.size()));
+					evaluator.getNextMove(context.getBoard(), context.getX(), context.getY(), pieces, move);
+				}
+
+				inputs.clear();
+
+				if (move.hasPath()) {
+					for (int i = 0; i < move.getPathLength(); i++) {
+						inputs.add(move.getInput(i));
 					}
+				} else {
+					int rDelta = move.getRotationDelta();
+					int mDelta = move.getMovementDelta();
+
+					while (rDelta != 0 || mDelta != 0) {
+						if (rDelta > 0) {
+							rDelta--;
+							inputs.add(Input.ROTATE_CLOCKWISE);
+						} else if (mDelta < 0) {
+							mDelta++;
+							inputs.add(Input.LEFT);
+						} else if (mDelta > 0) {
+							mDelta--;
+							inputs.add(Input.RIGHT);
+						}
+					}
+
+					inputs.add(Input.HARD_DROP);
 				}
 
-				commands.add(new HardDropCommand(context));
+				for (Input input : inputs) {
+					commands.add(createCommand(input));
+				}
+
+				if (pondering) {
+					startPonder();
+				}
 			}
 
 			animate();
 		}
 	}
 
+	/**
+	 * Queues a change to the settings of the evaluators or of the scoring system, to be made by
+	 * {@link #applyChanges} on the game thread. The searches read their settings throughout, so
+	 * changing them from another thread while a search runs may break the search.
+	 *
+	 * @param change The change.
+	 */
+	public void invokeBetweenMoves(Runnable change) {
+		changes.add(change);
+	}
+
+	/**
+	 * Makes the queued changes. This must be called on the game thread, which runs every search
+	 * other than the one started ahead of the game. That search is waited for and discarded first,
+	 * as it was started under the old settings.
+	 */
+	public void applyChanges() {
+		if (changes.isEmpty()) {
+			return;
+		}
+
+		waitForPonder();
+
+		Runnable change;
+		while ((change = changes.poll()) != null) {
+			change.run();
+		}
+	}
+
+	/**
+	 * @return The time, in milliseconds, a decision may take.
+	 */
+	private long getTimeLimit() {
+		return budget > 0 ? budget : Math.max(1, delay);
+	}
+
+	/**
+	 * Starts deciding on the move of the next piece while the current piece is animated. The search
+	 * starts from the board as it will be once the queued inputs have been played, which holds as
+	 * long as nothing else touches the board in the meantime.
+	 * <p>
+	 * Only pieces which are already drawn are pondered on. Nothing is pondered if the search needs
+	 * pieces the selector cannot draw ahead, as they depend on the board the current piece leaves.
+	 */
+	private void startPonder() {
+		if (!context.getSequence().canPeek(evaluator.getLookahead())) {
+			return;
+		}
+
+		Board board = predict();
+
+		ponderPieces.clear();
+
+		for (int i = 1; i <= evaluator.getLookahead(); i++) {
+			ponderPieces.add(context.getSequence().peek(i));
+		}
+
+		Tetromino next = ponderPieces.get(0);
+		ponderX = board.getSpawnX(next);
+		ponderY = board.getSpawnY(next);
+
+		if (!board.canMove(next, ponderX, ponderY)) {
+			return;
+		}
+
+		// The search is given everything it reads from the game up front, as the game moves on
+		// while it runs.
+
+		MoveEvaluator evaluator = this.evaluator;
+		List<Tetromino> pieces = ponderPieces;
+		List<Tetromino> candidates = context.getSequence().getCandidates(evaluator.getLookahead() + 1);
+		long limit = getTimeLimit();
+		int x = ponderX;
+		int y = ponderY;
+		Move result = ponderMove;
+
+		ponderHash = board.getHash();
+		ponderEvaluator = evaluator;
+
+		ponder = ponderer.submit(() -> {
+			evaluator.setDeadline(System.nanoTime() + limit * 1000000);
+			evaluator.setCandidates(candidates);
+			evaluator.getNextMove(board, x, y, pieces, result);
+		});
+	}
+
+	/**
+	 * Waits for the move decided while the previous piece was animated, and uses it if the game
+	 * turned out as predicted. The evaluator is not used by the game until this returns.
+	 *
+	 * @return <tt>true</tt> if the decided move was used, <tt>false</tt> if it was discarded.
+	 */
+	private boolean takePonder() {
+		if (!waitForPonder()) {
+			return false;
+		}
+
+		// Junk rows, an undo or a move by the player all change the board or the upcoming
+		// pieces, which makes the decided move meaningless.
+
+		if (ponderEvaluator != evaluator || ponderHash != context.getBoard().getHash() || ponderX != context.getX() || ponderY != context.getY() || !ponderPieces.equals(pieces)) {
+			ponderMisses++;
+			return false;
+		}
+
+		Move swap = move;
+		move = ponderMove;
+		ponderMove = swap;
+
+		ponderHits++;
+		return true;
+	}
+
+	/**
+	 * Waits for the search started ahead of the game to finish, if there is one.
+	 *
+	 * @return <tt>true</tt> if a search finished, <tt>false</tt> if there was none.
+	 */
+	private boolean waitForPonder() {
+		if (ponder == null) {
+			return false;
+		}
+
+		try {
+			ponder.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			ponder = null;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Plays the queued inputs on a copy of the board, in the same way as the commands created for
+	 * them will.
+	 *
+	 * @return The board after the current piece is dropped.
+	 */
+	private Board predict() {
+		Board board = context.getBoard().tryClone(ponderBoard);
+		ponderBoard = board;
+
+		Tetromino piece = context.getCurrent();
+		int x = context.getX();
+		int y = context.getY();
+
+		for (Input input : inputs) {
+			switch (input) {
+				case LEFT:
+				case RIGHT:
+				case SOFT_DROP:
+					int dx = input == Input.LEFT ? -1 : input == Input.RIGHT ? +1 : 0;
+					int dy = input == Input.SOFT_DROP ? -1 : 0;
+
+					if (board.canMove(piece, x + dx, y + dy)) {
+						x += dx;
+						y += dy;
+					}
+
+					break;
+
+				case ROTATE_CLOCKWISE:
+				case ROTATE_COUNTER_CLOCKWISE:
+					Tetromino rotated = input == Input.ROTATE_CLOCKWISE ? Tetromino.rotateClockwise(piece) : Tetromino.rotateCounterClockwise(piece);
+
+					for (int i = 0; i < rotated.getKickCount(); i++) {
+						if (board.canMove(rotated, x + rotated.getKickX(i), y + rotated.getKickY(i))) {
+							piece = rotated;
+							x += rotated.getKickX(i);
+							y += rotated.getKickY(i);
+							break;
+						}
+					}
+
+					break;
+
+				case HARD_DROP:
+					y = board.dropHeight(piece, x, y);
+					break;
+			}
+		}
+
+		board.placePiece(piece, x, y);
+		return board;
+	}
+
 	private void animate() {
 		if (commands.size() > 0) {
 			do {
+				// Unless the moves are played instantly, the piece is shown falling one row at a
+				// time before it is dropped.
+
+				if (delay > 1 && commands.peek() instanceof HardDropCommand && context.getBoard().isFalling(context.getCurrent(), context.getX(), context.getY())) {
+					context.store(new SoftDropCommand(context));
+					break;
+				}
+
 				context.store(commands.remove());
 			} while (commands.size() > 0 && delay == 1);
 		}
 	}
 
+	private Command createCommand(Input input) {
+		switch (input) {
+			case LEFT:
+				return new MoveLeftCommand(context);
+
+			case RIGHT:
+				return new MoveRightCommand(context);
+
+			case ROTATE_CLOCKWISE:
+				return new RotateClockwiseCommand(context);
+
+			case ROTATE_COUNTER_CLOCKWISE:
+				return new RotateCounterClockwiseCommand(context);
+
+			case SOFT_DROP:
+				return new SoftDropCommand(context);
+
+			default:
+				return new HardDropCommand(context);
+		}
+	}
+
 	public boolean isEnabled() {
 		return enabled;
 	}
@@ -121,7 +402,56 @@ public class AI
 		this.training = training;
 	}
 
+	public MoveEvaluator getEvaluator() {
+		return evaluator;
+	}
+
+	public void setEvaluator(MoveEvaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
 	public void setDelay(int delay) {
 		this.delay = delay;
 	}
+
+	public boolean isPondering() {
+		return pondering;
+	}
+
+	/**
+	 * Sets whether the next move is decided while the current piece is animated.
+	 *
+	 * @param pondering Whether to decide moves ahead of time.
+	 */
+	public void setPondering(boolean pondering) {
+		this.pondering = pondering;
+	}
+
+	/**
+	 * @return The number of moves decided ahead of time which were used.
+	 */
+	public int getPonderHits() {
+		return ponderHits;
+	}
+
+	/**
+	 * @return The number of moves decided ahead of time which were discarded.
+	 */
+	public int getPonderMisses() {
+		return ponderMisses;
+	}
+
+	public long getTimeBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the time the evaluator may take to decide on a move. Only evaluators whose searches can
+	 * be cut short are affected.
+	 *
+	 * @param budget The time budget, in milliseconds, or zero to use the update delay.
+	 */
+	public void setTimeBudget(long budget) {
+		this.budget = budget;
+	}
 }
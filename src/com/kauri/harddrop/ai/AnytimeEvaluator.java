@@ -0,0 +1,218 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A move evaluator which searches every placement of a queue of known upcoming pieces, one more
+ * piece at a time, until its deadline passes. The best move of the deepest search which completed
+ * is used, so the strength of the search scales with the time available. A search of a single
+ * piece always completes, and a deeper search is not started if it is not expected to complete.
+ * <p>
+ * The search of the first two pieces visits the same placements in the same order as
+ * {@link MoveEvaluator}, so it chooses the same move.
+ *
+ * @author Eric Fritz
+ */
+public class AnytimeEvaluator extends MoveEvaluator
+{
+	/**
+	 * The number of boards scored between checks of the clock.
+	 */
+	private static final int CHECK_INTERVAL = 64;
+
+	private int maxDepth;
+	private long budget = 100;
+
+	private long deadline;
+	private boolean expired;
+	private int countdown;
+	private int depthReached;
+
+	private int bestRotation;
+	private int bestTranslation;
+
+	private PlacementList[] placements = new PlacementList[0];
+
+	public AnytimeEvaluator(ScoringSystem scoring, int maxDepth) {
+		super(scoring);
+		setMaxDepth(maxDepth);
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+
+		placements = Arrays.copyOf(placements, maxDepth);
+
+		for (int i = 0; i < maxDepth; i++) {
+			if (placements[i] == null) {
+				placements[i] = new PlacementList();
+			}
+		}
+	}
+
+	public long getTimeBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the time a search may take, unless a deadline is set for the search.
+	 *
+	 * @param budget The time budget, in milliseconds.
+	 */
+	public void setTimeBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * @return The number of pieces searched by the deepest search which completed last time.
+	 */
+	public int getDepthReached() {
+		return depthReached;
+	}
+
+	@Override
+	public int getLookahead() {
+		return maxDepth;
+	}
+
+	@Override
+	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, Move result) {
+		return getNextMove(board, x1, y1, preview == null ? Arrays.asList(current) : Arrays.asList(current, preview), result);
+	}
+
+	@Override
+	public Move getNextMove(Board board, int x, int y, List<Tetromino> pieces, Move result) {
+		long start = System.nanoTime();
+		deadline = takeDeadline(start + budget * 1000000);
+
+		int depth = Math.min(maxDepth, pieces.size());
+		depthReached = 0;
+
+		result.set(Double.NEGATIVE_INFINITY, 0, 0);
+
+		for (int d = 1; d <= depth; d++) {
+			long iteration = System.nanoTime();
+
+			expired = false;
+			countdown = CHECK_INTERVAL;
+			bestRotation = 0;
+			bestTranslation = 0;
+
+			// The first search has to complete, so that there is always a move to play.
+
+			double score = search(board, pieces, x, y, 0, d, 0, d > 1);
+
+			if (expired) {
+				break;
+			}
+
+			result.set(score, bestRotation, bestTranslation);
+			depthReached = d;
+
+			// Each piece multiplies the number of boards by roughly the number of placements of a
+			// piece, so a search which would take longer than the time left is not started.
+
+			long now = System.nanoTime();
+			long estimate = (now - iteration) * 4 * board.getWidth();
+
+			if (now + estimate > deadline) {
+				break;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Determines the score of the best placement of the piece at a depth of the queue, assuming
+	 * the best placements of the following pieces. The rotation and the translation of the best
+	 * placement are recorded only for the first piece.
+	 *
+	 * @return The best score, which is meaningless if the search expired.
+	 */
+	private double search(Board board, List<Tetromino> pieces, int x1, int y1, int index, int depth, int clears, boolean timed) {
+		Tetromino piece = pieces.get(index);
+
+		if (index > 0) {
+			x1 = board.getSpawnX(piece);
+			y1 = board.getSpawnY(piece);
+
+			if (!board.canMove(piece, x1, y1)) {
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+
+		PlacementList placements = enumerate(board, piece, x1, y1, this.placements[index]);
+		double best = Double.NEGATIVE_INFINITY;
+
+		if (index == depth - 1) {
+			getScoring().prepare(board);
+		}
+
+		for (int i = 0; i < placements.size(); i++) {
+			Tetromino current = placements.getPiece(i);
+			int x = placements.getX(i);
+			int y = placements.getY(i);
+
+			double score;
+
+			if (index == depth - 1) {
+				board.addPiece(current, x, y);
+				score = getScoring().score(board, clears, current, x, y);
+				board.removePiece(current, x, y);
+
+				if (timed && --countdown == 0) {
+					countdown = CHECK_INTERVAL;
+					expired = System.nanoTime() > deadline;
+				}
+			} else {
+				int cleared = board.placePiece(current, x, y);
+				score = search(board, pieces, x1, y1, index + 1, depth, clears + cleared, timed);
+				board.undoPiece();
+			}
+
+			if (expired) {
+				return best;
+			}
+
+			if (score > best) {
+				best = score;
+
+				if (index == 0) {
+					bestRotation = placements.getRotation(i);
+					bestTranslation = x - x1;
+				}
+			}
+		}
+
+		return best;
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A move evaluator which searches over a queue of known upcoming pieces with a beam search. At
+ * each depth, every placement of the next piece is tried on every board in the beam, and only the
+ * best boards by heuristic score are kept for the following depth. This bounds the cost of a
+ * search by the depth and the width of the beam instead of growing exponentially with the depth.
+ * <p>
+ * The boards searched below the chosen move are searched again by the next search, one depth
+ * shallower, so the scored placements of each board are kept and replayed when the same board,
+ * piece and number of cleared rows come up again.
+ *
+ * @author Eric Fritz
+ */
+public class BeamSearchEvaluator extends MoveEvaluator
+{
+	private int depth;
+	private int width;
+
+	private Board[] beam = new Board[0];
+	private int[] beamRotations = new int[0];
+	private int[] beamTranslations = new int[0];
+	private int[] beamClears = new int[0];
+	private double[] beamScores = new double[0];
+
+	private Board[] next = new Board[0];
+	private int[] nextRotations = new int[0];
+	private int[] nextTranslations = new int[0];
+	private int[] nextClears = new int[0];
+	private double[] nextScores = new double[0];
+
+	private int candidates;
+	private double[] candidateScores = new double[0];
+	private int[] candidateParents = new int[0];
+	private Tetromino[] candidatePieces = new Tetromino[0];
+	private int[] candidateRotations = new int[0];
+	private int[] candidatePositions = new int[0];
+	private int[] candidateTargets = new int[0];
+
+	/**
+	 * The placements of the piece of an expansion, and the boards they leave, which are scored
+	 * together.
+	 */
+	private PlacementList placements = new PlacementList();
+	private CandidateBatch batch = new CandidateBatch();
+	private double[] batchScores = new double[0];
+
+	/**
+	 * The expansions of the current search, and those of the previous search which can be replayed.
+	 * Only expansions below the move chosen by the previous search are replayed, as no other board
+	 * can come up again.
+	 */
+	private Expansions recorded = new Expansions();
+	private Expansions retained = new Expansions();
+	private Weights retainedWeights;
+	private Network retainedNetwork;
+	private int retainedRotation;
+	private int retainedTranslation;
+	private int replayed;
+
+	public BeamSearchEvaluator(ScoringSystem scoring, int depth, int width) {
+		super(scoring);
+
+		setDepth(depth);
+		setWidth(width);
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public void setDepth(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("Beam search depth must be positive.");
+		}
+
+		this.depth = depth;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public void setWidth(int width) {
+		if (width < 1) {
+			throw new IllegalArgumentException("Beam search width must be positive.");
+		}
+
+		this.width = width;
+	}
+
+	/**
+	 * @return The number of boards of the last search whose placements were replayed from the
+	 *         previous search instead of being scored.
+	 */
+	public int getReplayed() {
+		return replayed;
+	}
+
+	@Override
+	public int getLookahead() {
+		return depth;
+	}
+
+	@Override
+	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, Move result) {
+		return getNextMove(board, x1, y1, preview == null ? Arrays.asList(current) : Arrays.asList(current, preview), result);
+	}
+
+	@Override
+	public Move getNextMove(Board board, int x, int y, List<Tetromino> pieces, Move result) {
+		int width = this.width;
+		ensureCapacity(width);
+
+		// Scores recorded under other weights or another network cannot be replayed.
+
+		Expansions expansions = retained;
+		retained = recorded;
+		recorded = expansions;
+		recorded.clear();
+		replayed = 0;
+
+		if (retainedWeights != getScoring().getWeights() || retainedNetwork != getScoring().getNetwork()) {
+			retainedWeights = getScoring().getWeights();
+			retainedNetwork = getScoring().getNetwork();
+			retained.clear();
+		}
+
+		int size = 1;
+		beam[0] = board.tryClone(beam[0]);
+		beamRotations[0] = 0;
+		beamTranslations[0] = 0;
+		beamClears[0] = 0;
+		beamScores[0] = Double.NEGATIVE_INFINITY;
+
+		for (int d = 0; d < Math.min(depth, pieces.size()); d++) {
+			candidates = 0;
+
+			for (int n = 0; n < size; n++) {
+				expand(beam[n], n, pieces.get(d), d == 0 ? x : -1, d == 0 ? y : -1, d == 0, width);
+			}
+
+			// A beam with no surviving boards means that every board has topped out, so the best
+			// board of the previous depth decides the move.
+
+			if (candidates == 0) {
+				break;
+			}
+
+			for (int i = 0; i < candidates; i++) {
+				int parent = candidateParents[i];
+
+				next[i] = beam[parent].tryClone(next[i]);
+				nextClears[i] = beamClears[parent] + next[i].placePiece(candidatePieces[i], candidatePositions[i], candidateTargets[i]);
+				nextRotations[i] = d == 0 ? candidateRotations[i] : beamRotations[parent];
+				nextTranslations[i] = d == 0 ? candidatePositions[i] - x : beamTranslations[parent];
+				nextScores[i] = candidateScores[i];
+			}
+
+			size = candidates;
+			swap();
+		}
+
+		retainedRotation = beamRotations[0];
+		retainedTranslation = beamTranslations[0];
+
+		result.set(beamScores[0], beamRotations[0], beamTranslations[0]);
+		return result;
+	}
+
+	/**
+	 * Scores every placement of a piece on a board of the beam, offering each one as a candidate
+	 * for the next depth.
+	 *
+	 * @param board  The board.
+	 * @param parent The index of the board in the beam.
+	 * @param piece  The piece to place.
+	 * @param x      The x-position of the piece, or <tt>-1</tt> to use the spawn position.
+	 * @param y      The y-position of the piece, or <tt>-1</tt> to use the spawn position.
+	 * @param root   Whether the board is the root of the search.
+	 * @param width  The maximum number of candidates.
+	 */
+	private void expand(Board board, int parent, Tetromino piece, int x, int y, boolean root, int width) {
+		if (x < 0) {
+			x = board.getSpawnX(piece);
+			y = board.getSpawnY(piece);
+
+			if (!board.canMove(piece, x, y)) {
+				return;
+			}
+		}
+
+		long key = board.getHash() ^ TranspositionTable.mix(piece.hashCode() + 1, x, y, beamClears[parent]);
+
+		// The root move of a board is only known below the root, and only boards below the root
+		// can come up again.
+
+		int rootRotation = root ? -1 : beamRotations[parent];
+		int rootTranslation = root ? 0 : beamTranslations[parent];
+
+		int expansion = retained.find(key, retainedRotation, retainedTranslation);
+
+		if (expansion >= 0) {
+			recorded.begin(key, rootRotation, rootTranslation);
+
+			for (int i = retained.getStart(expansion); i < retained.getEnd(expansion); i++) {
+				recorded.add(retained.scores[i], retained.pieces[i], retained.rotations[i], retained.positions[i], retained.targets[i]);
+				offer(retained.scores[i], parent, retained.pieces[i], retained.rotations[i], retained.positions[i], retained.targets[i], width);
+			}
+
+			replayed++;
+			return;
+		}
+
+		recorded.begin(key, rootRotation, rootTranslation);
+		getScoring().prepare(board);
+
+		// Placements with the same cells would fill the beam with copies of the same board, which
+		// the enumeration leaves out.
+
+		enumerate(board, piece, x, y, placements);
+		batch.clear();
+
+		if (batchScores.length < placements.size()) {
+			batchScores = new double[placements.size()];
+		}
+
+		for (int i = 0; i < placements.size(); i++) {
+			board.addPiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+			getScoring().add(batch, board, beamClears[parent], placements.getPiece(i), placements.getX(i), placements.getY(i));
+			board.removePiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+		}
+
+		getScoring().score(batch, batchScores);
+
+		for (int i = 0; i < placements.size(); i++) {
+			recorded.add(batchScores[i], placements.getPiece(i), placements.getRotation(i), placements.getX(i), placements.getY(i));
+			offer(batchScores[i], parent, placements.getPiece(i), placements.getRotation(i), placements.getX(i), placements.getY(i), width);
+		}
+	}
+
+	/**
+	 * Inserts a candidate into the list of best candidates, which is kept sorted by descending
+	 * score. Candidates with equal scores keep the order in which they were offered.
+	 */
+	private void offer(double score, int parent, Tetromino piece, int rotation, int position, int target, int width) {
+		if (candidates == width && score <= candidateScores[width - 1]) {
+			return;
+		}
+
+		int i = Math.min(candidates, width - 1);
+		while (i > 0 && candidateScores[i - 1] < score) {
+			candidateScores[i] = candidateScores[i - 1];
+			candidateParents[i] = candidateParents[i - 1];
+			candidatePieces[i] = candidatePieces[i - 1];
+			candidateRotations[i] = candidateRotations[i - 1];
+			candidatePositions[i] = candidatePositions[i - 1];
+			candidateTargets[i] = candidateTargets[i - 1];
+			i--;
+		}
+
+		candidateScores[i] = score;
+		candidateParents[i] = parent;
+		candidatePieces[i] = piece;
+		candidateRotations[i] = rotation;
+		candidatePositions[i] = position;
+		candidateTargets[i] = target;
+
+		candidates = Math.min(candidates + 1, width);
+	}
+
+	/**
+	 * Exchanges the beam of the current depth with the beam of the next depth.
+	 */
+	private void swap() {
+		Board[] boards = beam;
+		beam = next;
+		next = boards;
+
+		int[] rotations = beamRotations;
+		beamRotations = nextRotations;
+		nextRotations = rotations;
+
+		int[] translations = beamTranslations;
+		beamTranslations = nextTranslations;
+		nextTranslations = translations;
+
+		int[] clears = beamClears;
+		beamClears = nextClears;
+		nextClears = clears;
+
+		double[] scores = beamScores;
+		beamScores = nextScores;
+		nextScores = scores;
+	}
+
+	/**
+	 * Grows the beam and candidate storage to hold the given number of boards.
+	 */
+	private void ensureCapacity(int width) {
+		if (beam.length < width) {
+			beam = Arrays.copyOf(beam, width);
+			beamRotations = new int[width];
+			beamTranslations = new int[width];
+			beamClears = new int[width];
+			beamScores = new double[width];
+
+			next = Arrays.copyOf(next, width);
+			nextRotations = new int[width];
+			nextTranslations = new int[width];
+			nextClears = new int[width];
+			nextScores = new double[width];
+
+			candidateScores = new double[width];
+			candidateParents = new int[width];
+			candidatePieces = new Tetromino[width];
+			candidateRotations = new int[width];
+			candidatePositions = new int[width];
+			candidateTargets = new int[width];
+		}
+	}
+
+	/**
+	 * The scored placements of every board expanded by a search, stored contiguously by board.
+	 */
+	private static class Expansions
+	{
+		public double[] scores = new double[64];
+		public Tetromino[] pieces = new Tetromino[64];
+		public int[] rotations = new int[64];
+		public int[] positions = new int[64];
+		public int[] targets = new int[64];
+		private int size;
+
+		private int[] starts = new int[16];
+		private int[] rootRotations = new int[16];
+		private int[] rootTranslations = new int[16];
+		private int count;
+
+		private Map<Long, Integer> index = new HashMap<>();
+
+		public void clear() {
+			size = 0;
+			count = 0;
+			index.clear();
+		}
+
+		/**
+		 * Looks up the expansion of a board below a root move.
+		 *
+		 * @return The expansion index, or <tt>-1</tt> if the board was not expanded below the move.
+		 */
+		public int find(long key, int rootRotation, int rootTranslation) {
+			Integer expansion = index.get(key);
+
+			if (expansion == null || rootRotations[expansion] != rootRotation || rootTranslations[expansion] != rootTranslation) {
+				return -1;
+			}
+
+			return expansion;
+		}
+
+		public int getStart(int expansion) {
+			return starts[expansion];
+		}
+
+		public int getEnd(int expansion) {
+			return expansion == count - 1 ? size : starts[expansion + 1];
+		}
+
+		/**
+		 * Starts the expansion of a board. The placements added until the next expansion is started
+		 * belong to this one.
+		 */
+		public void begin(long key, int rootRotation, int rootTranslation) {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				rootRotations = Arrays.copyOf(rootRotations, count * 2);
+				rootTranslations = Arrays.copyOf(rootTranslations, count * 2);
+			}
+
+			starts[count] = size;
+			rootRotations[count] = rootRotation;
+			rootTranslations[count] = rootTranslation;
+			index.put(key, count++);
+		}
+
+		public void add(double score, Tetromino piece, int rotation, int position, int target) {
+			if (size == scores.length) {
+				scores = Arrays.copyOf(scores, size * 2);
+				pieces = Arrays.copyOf(pieces, size * 2);
+				rotations = Arrays.copyOf(rotations, size * 2);
+				positions = Arrays.copyOf(positions, size * 2);
+				targets = Arrays.copyOf(targets, size * 2);
+			}
+
+			scores[size] = score;
+			pieces[size] = piece;
+			rotations[size] = rotation;
+			positions[size] = position;
+			targets[size] = target;
+			size++;
+		}
+	}
+}
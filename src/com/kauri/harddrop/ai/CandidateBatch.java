@@ -0,0 +1,115 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import java.util.Arrays;
+
+/**
+ * The features of a number of candidate boards, such as the boards left by each placement of a
+ * piece. The features are laid out with one array per feature rather than one array per
+ * candidate, so that a feature can be weighted for several candidates at once. The number of
+ * features is set by the first candidate added, so a batch may also hold the inputs of a
+ * {@link Network}.
+ *
+ * @author Eric Fritz
+ */
+public class CandidateBatch
+{
+	private double[][] features = new double[FeatureExtractor.FEATURES][16];
+	private int size = 0;
+
+	/**
+	 * The network whose inputs are held, or <tt>null</tt> if the batch holds features.
+	 */
+	private Network network;
+
+	/**
+	 * @return The number of candidates in the batch.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every candidate from the batch.
+	 */
+	public void clear() {
+		size = 0;
+		network = null;
+	}
+
+	Network getNetwork() {
+		return network;
+	}
+
+	void setNetwork(Network network) {
+		this.network = network;
+	}
+
+	/**
+	 * @return The number of features of each candidate.
+	 */
+	public int getFeatureCount() {
+		return features.length;
+	}
+
+	/**
+	 * Adds a candidate to the batch.
+	 *
+	 * @param candidate The features of the candidate.
+	 *
+	 * @return The index of the candidate.
+	 */
+	public int add(double[] candidate) {
+		if (candidate.length != features.length) {
+			if (size != 0) {
+				throw new IllegalArgumentException("Candidate has " + candidate.length + " features, expected " + features.length + ".");
+			}
+
+			features = new double[candidate.length][features[0].length];
+		}
+
+		if (size == features[0].length) {
+			for (int i = 0; i < features.length; i++) {
+				features[i] = Arrays.copyOf(features[i], size * 2);
+			}
+		}
+
+		for (int i = 0; i < features.length; i++) {
+			features[i][size] = candidate[i];
+		}
+
+		return size++;
+	}
+
+	/**
+	 * Retrieves the values of a feature for every candidate. Only the first {@link #size} values
+	 * are meaningful.
+	 *
+	 * @param feature The index of the feature.
+	 *
+	 * @return The values of the feature.
+	 */
+	public double[] getFeature(int feature) {
+		return features[feature];
+	}
+}
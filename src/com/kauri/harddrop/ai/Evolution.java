@@ -56,20 +56,24 @@ public class Evolution
 
 		try (Scanner scanner = new Scanner(new BufferedReader(new FileReader(filename)))) {
 			for (int i = 0; i < populationSize; i++) {
-				double[] weights = new double[8];
+				double[] weights = new double[FeatureExtractor.FEATURES];
 
-				for (int j = 0; j < weights.length; j++) {
-					weights[j] = scanner.nextDouble();
+				// Populations saved before the later features were added have fewer weights on
+				// each line, and those features are left unweighted.
+
+				try (Scanner line = new Scanner(scanner.nextLine())) {
+					for (int j = 0; j < weights.length && line.hasNextDouble(); j++) {
+						weights[j] = line.nextDouble();
+					}
 				}
 
 				population[i] = new Weights(weights);
-				scanner.nextLine();
 			}
 		} catch (FileNotFoundException e) {
 			System.out.println("Population data not found - generating random population.");
 
 			for (int i = 0; i < populationSize; i++) {
-				double[] weights = new double[8];
+				double[] weights = new double[FeatureExtractor.FEATURES];
 
 				for (int j = 0; j < weights.length; j++) {
 					weights[j] = Math.random() * 10 - 5;
@@ -126,7 +130,7 @@ public class Evolution
 				int w1 = (int) (Math.random() * (populationSize / 2));
 				int w2 = (int) (Math.random() * (populationSize / 2));
 
-				double[] child = new double[8];
+				double[] child = new double[FeatureExtractor.FEATURES];
 
 				for (int j = 0; j < child.length; j++) {
 					child[j] = population[idx[Math.random() < .5 ? w1 : w2]].getWeights()[j];
@@ -0,0 +1,416 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.GameContext;
+import com.kauri.harddrop.Shape;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A move evaluator which looks one piece past the preview. The piece after the preview is not
+ * known, so each board reached by placing the current and the preview piece is scored by the
+ * average, over every piece which may come next, of the best placement of that piece. The pieces
+ * which may come next are taken from the piece sequence of the game, so pieces already drawn from
+ * the current bag of a shuffled sequence are excluded.
+ * <p>
+ * Searching every placement this way is too slow, so only the most promising placements are
+ * refined. The placements of the current piece are ranked by the usual two-piece search, and the
+ * best few are refined in parallel, each one considering only its best few preview placements.
+ * The outcomes of each chance node are also scored in parallel, and boards which are reached more
+ * than once share their score. If the time budget runs out, the placements which were not fully
+ * refined are dropped; if none were, the best placement of the two-piece search is used.
+ *
+ * @author Eric Fritz
+ */
+public class ExpectimaxEvaluator extends MoveEvaluator
+{
+	private GameContext context;
+	private ForkJoinPool pool;
+
+	private long budget = 50;
+	private int breadth = 8;
+	private int refined = 0;
+
+	private ThreadLocal<MoveEvaluator> evaluators = ThreadLocal.withInitial(() -> new MoveEvaluator(getScoring()));
+	private ThreadLocal<Board> boards = new ThreadLocal<>();
+
+	/**
+	 * Scores of chance nodes, keyed by the board and the number of rows cleared on the way to it.
+	 * This is cleared at the start of every search.
+	 */
+	private Map<Long, Double> memo = new ConcurrentHashMap<>();
+
+	public ExpectimaxEvaluator(ScoringSystem scoring, GameContext context) {
+		this(scoring, context, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ExpectimaxEvaluator(ScoringSystem scoring, GameContext context, int parallelism) {
+		super(scoring);
+		this.context = context;
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	public long getTimeBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the time a search may take before it stops refining placements, unless a deadline is
+	 * set for the search.
+	 *
+	 * @param budget The time budget, in milliseconds.
+	 */
+	public void setTimeBudget(long budget) {
+		this.budget = budget;
+	}
+
+	public int getBreadth() {
+		return breadth;
+	}
+
+	/**
+	 * Sets the number of placements of the current piece which are refined, and the number of
+	 * placements of the preview piece considered for each of them.
+	 *
+	 * @param breadth The number of placements.
+	 */
+	public void setBreadth(int breadth) {
+		this.breadth = breadth;
+	}
+
+	/**
+	 * @return The number of placements of the current piece which were fully refined by the last
+	 *         search.
+	 */
+	public int getRefined() {
+		return refined;
+	}
+
+	@Override
+	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, Move result) {
+		if (preview == null) {
+			return super.getNextMove(board, current, x1, y1, preview, x2, y2, result);
+		}
+
+		long deadline = takeDeadline(System.nanoTime() + budget * 1000000);
+
+		memo.clear();
+		// The sequence is only consulted when no candidates were given, as it may have moved on
+		// by the time a search started ahead of the game gets to run.
+
+		List<Tetromino> candidates = takeCandidates();
+
+		if (candidates == null) {
+			candidates = context == null ? Arrays.asList(Tetromino.tetrominoes) : context.getSequence().getCandidates(2);
+		}
+
+		Outcomes outcomes = new Outcomes(candidates);
+
+		// Rank the placements of the current piece by the two-piece search.
+
+		Board copy = board.tryClone(boards.get());
+		boards.set(copy);
+
+		PlacementList placements = enumerate(copy, current, x1, y1);
+
+		for (int i = 0; i < placements.size(); i++) {
+			placements.setScore(i, evaluators.get().evaluatePlacement(copy, placements.getPiece(i), placements.getX(i), placements.getY(i), preview, x2, y2, 0, 0));
+		}
+
+		int[] ranked = placements.rank(breadth);
+
+		double[] values = new double[ranked.length];
+		Arrays.fill(values, Double.NaN);
+
+		pool.invoke(new RootTask(board, placements, ranked, values, 0, values.length, preview, x2, y2, outcomes, deadline));
+
+		// The ranking breaks ties in favor of the earliest placement, and so does this.
+
+		int best = ranked.length == 0 ? -1 : ranked[0];
+		double score = best < 0 ? Double.NEGATIVE_INFINITY : placements.getScore(best);
+		boolean found = false;
+		refined = 0;
+
+		for (int i = 0; i < values.length; i++) {
+			if (!Double.isNaN(values[i])) {
+				refined++;
+
+				if (!found || values[i] > score) {
+					best = ranked[i];
+					score = values[i];
+					found = true;
+				}
+			}
+		}
+
+		if (best < 0) {
+			result.set(score, 0, 0);
+		} else {
+			result.set(score, placements.getRotation(best), placements.getX(best) - x1);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Determines the score of a placement of the current piece, assuming the best placement of the
+	 * preview piece afterwards.
+	 *
+	 * @return The score, or <tt>NaN</tt> if the time budget ran out.
+	 */
+	private double refine(Board board, Tetromino current, int x, int y, Tetromino preview, int x2, int y2, Outcomes outcomes, long deadline) {
+		Board copy = board.tryClone(null);
+		int clears = copy.placePiece(current, x, y);
+
+		PlacementList placements = enumerate(copy, preview, x2, y2);
+		getScoring().prepare(copy);
+
+		CandidateBatch batch = new CandidateBatch();
+		double[] scores = new double[placements.size()];
+
+		for (int i = 0; i < placements.size(); i++) {
+			copy.addPiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+			getScoring().add(batch, copy, clears, placements.getPiece(i), placements.getX(i), placements.getY(i));
+			copy.removePiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+		}
+
+		getScoring().score(batch, scores);
+
+		for (int i = 0; i < scores.length; i++) {
+			placements.setScore(i, scores[i]);
+		}
+
+		double best = Double.NEGATIVE_INFINITY;
+
+		for (int i : placements.rank(breadth)) {
+			if (System.nanoTime() > deadline) {
+				return Double.NaN;
+			}
+
+			int cleared = copy.placePiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+			double value = getExpectedScore(copy, clears + cleared, outcomes, deadline);
+			copy.undoPiece();
+
+			if (Double.isNaN(value)) {
+				return Double.NaN;
+			}
+
+			best = Math.max(best, value);
+		}
+
+		return best;
+	}
+
+	/**
+	 * Determines the average score of the best placement of the next piece, over every piece
+	 * which may come next.
+	 *
+	 * @return The score, or <tt>NaN</tt> if the time budget ran out.
+	 */
+	private double getExpectedScore(Board board, int clears, Outcomes outcomes, long deadline) {
+		long key = board.getHash() ^ (clears * 0x9E3779B97F4A7C15L);
+
+		Double cached = memo.get(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		double[] scores = new double[outcomes.pieces.length];
+		OutcomeTask[] tasks = new OutcomeTask[outcomes.pieces.length];
+
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new OutcomeTask(board, outcomes.pieces[i], clears, scores, i, deadline);
+		}
+
+		RecursiveAction.invokeAll(tasks);
+
+		double expected = 0;
+
+		for (int i = 0; i < scores.length; i++) {
+			if (Double.isNaN(scores[i])) {
+				return Double.NaN;
+			}
+
+			expected += outcomes.probabilities[i] * scores[i];
+		}
+
+		memo.put(key, expected);
+		return expected;
+	}
+
+	/**
+	 * Scores the best placement of a single next piece on the calling thread's board and
+	 * evaluator. A piece which cannot enter the board ends the game.
+	 */
+	private double evaluateOutcome(Board board, Tetromino piece, int clears, long deadline) {
+		if (System.nanoTime() > deadline) {
+			return Double.NaN;
+		}
+
+		Board copy = board.tryClone(boards.get());
+		boards.set(copy);
+
+		int x = copy.getSpawnX(piece);
+		int y = copy.getSpawnY(piece);
+
+		if (!copy.canMove(piece, x, y)) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		return evaluators.get().getBestScore(copy, piece, x, y, clears);
+	}
+
+	/**
+	 * Lists the distinct placements of a piece, or none if the piece cannot enter the board.
+	 */
+	private PlacementList enumerate(Board board, Tetromino piece, int x, int y) {
+		PlacementList placements = new PlacementList();
+
+		if (board.canMove(piece, x, y)) {
+			enumerate(board, piece, x, y, placements);
+		}
+
+		return placements;
+	}
+
+	/**
+	 * The distinct pieces which may come next, along with their probabilities.
+	 */
+	private static class Outcomes
+	{
+		public Tetromino[] pieces;
+		public double[] probabilities;
+
+		public Outcomes(List<Tetromino> candidates) {
+			int[] counts = new int[Shape.values().length];
+
+			for (Tetromino candidate : candidates) {
+				counts[candidate.getShape().ordinal()]++;
+			}
+
+			int distinct = 0;
+			for (int count : counts) {
+				if (count > 0) {
+					distinct++;
+				}
+			}
+
+			pieces = new Tetromino[distinct];
+			probabilities = new double[distinct];
+
+			int i = 0;
+			for (Tetromino tetromino : Tetromino.tetrominoes) {
+				if (counts[tetromino.getShape().ordinal()] > 0) {
+					pieces[i] = tetromino;
+					probabilities[i] = counts[tetromino.getShape().ordinal()] / (double) candidates.size();
+					i++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A task which refines a range of ranked placements, splitting the range in half until a
+	 * single placement remains.
+	 */
+	private class RootTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Board board;
+		private PlacementList placements;
+		private int[] ranked;
+		private double[] values;
+		private int lo;
+		private int hi;
+		private Tetromino preview;
+		private int x2;
+		private int y2;
+		private Outcomes outcomes;
+		private long deadline;
+
+		public RootTask(Board board, PlacementList placements, int[] ranked, double[] values, int lo, int hi, Tetromino preview, int x2, int y2, Outcomes outcomes, long deadline) {
+			this.board = board;
+			this.placements = placements;
+			this.ranked = ranked;
+			this.values = values;
+			this.lo = lo;
+			this.hi = hi;
+			this.preview = preview;
+			this.x2 = x2;
+			this.y2 = y2;
+			this.outcomes = outcomes;
+			this.deadline = deadline;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo == 1) {
+				int i = ranked[lo];
+				values[lo] = refine(board, placements.getPiece(i), placements.getX(i), placements.getY(i), preview, x2, y2, outcomes, deadline);
+			} else if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+
+				invokeAll(
+					new RootTask(board, placements, ranked, values, lo, mid, preview, x2, y2, outcomes, deadline),
+					new RootTask(board, placements, ranked, values, mid, hi, preview, x2, y2, outcomes, deadline)
+				);
+			}
+		}
+	}
+
+	/**
+	 * A task which scores a single outcome of a chance node.
+	 */
+	private class OutcomeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Board board;
+		private Tetromino piece;
+		private int clears;
+		private double[] scores;
+		private int index;
+		private long deadline;
+
+		public OutcomeTask(Board board, Tetromino piece, int clears, double[] scores, int index, long deadline) {
+			this.board = board;
+			this.piece = piece;
+			this.clears = clears;
+			this.scores = scores;
+			this.index = index;
+			this.deadline = deadline;
+		}
+
+		@Override
+		protected void compute() {
+			scores[index] = evaluateOutcome(board, piece, clears, deadline);
+		}
+	}
+}
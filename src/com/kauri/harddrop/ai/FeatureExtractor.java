@@ -0,0 +1,643 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+
+/**
+ * Extracts the features of a board which are weighted by a {@link ScoringSystem}. Full rows are
+ * removed virtually, as if the rows above had collapsed onto them. The holes follow from the
+ * column fills tracked by the board and from the heights, which are found by a short walk down
+ * from the top. Every other feature is computed in a single pass up the occupancy words of the
+ * rows, so that each row is handled a whole word at a time instead of one block at a time. The
+ * depths of wells, which need a running count per column, are kept bit-sliced: bit <tt>c</tt> of
+ * the <tt>k</tt>th word is bit <tt>k</tt> of the depth of column <tt>c</tt>.
+ * <p>
+ * An extractor keeps scratch state between calls, so it must not be shared between threads.
+ *
+ * @author Eric Fritz
+ */
+public class FeatureExtractor
+{
+	public static final int SUM_HEIGHT = 0;
+	public static final int MAX_HEIGHT = 1;
+	public static final int HEIGHT_RANGE = 2;
+	public static final int MEAN_HEIGHT = 3;
+	public static final int HOLES = 4;
+	public static final int WELLS = 5;
+	public static final int BLOCKADES = 6;
+	public static final int CLEARS = 7;
+	public static final int ROW_TRANSITIONS = 8;
+	public static final int COLUMN_TRANSITIONS = 9;
+	public static final int ERODED_CELLS = 10;
+	public static final int CUMULATIVE_WELLS = 11;
+	public static final int LANDING_HEIGHT = 12;
+
+	/**
+	 * The number of features.
+	 */
+	public static final int FEATURES = 13;
+
+	/**
+	 * The largest number of bits of a bit-sliced count, which is enough to count every row of a
+	 * board.
+	 */
+	private static final int PLANES = 7;
+
+	private double[] features = new double[FEATURES];
+	private int[] heights = new int[0];
+	private long[] depths = new long[PLANES];
+
+	/**
+	 * The columns of each height, which are above the pile from that row upwards.
+	 */
+	private long[] opens = new long[0];
+
+	/**
+	 * The board whose features were last prepared, along with its hash at the time. The features
+	 * of this board with a single piece added are updated from these rather than extracted again.
+	 */
+	private Board parent;
+	private long parentHash;
+	private double[] parentFeatures = new double[FEATURES];
+	private int parentMinCount;
+
+	/**
+	 * For each column of the prepared board: its height, its lowest empty block, its depth as a
+	 * well, and its cumulative well depth.
+	 */
+	private int[] parentHeights = new int[0];
+	private int[] parentLowest = new int[0];
+	private int[] parentWells = new int[0];
+	private int[] parentCumulativeWells = new int[0];
+
+	/**
+	 * Extracts the features of a board into an array which is reused by the next extraction.
+	 *
+	 * @see #extract(Board, int, Tetromino, int, int, double[])
+	 */
+	public double[] extract(Board board, int cleared, Tetromino piece, int x, int y) {
+		return extract(board, cleared, piece, x, y, features);
+	}
+
+	/**
+	 * Extracts the features of a board.
+	 *
+	 * @param board    The board.
+	 * @param cleared  The number of rows already cleared on the way to this board.
+	 * @param piece    The piece placed last, or <tt>null</tt> if it is not known. The piece must
+	 *                 be on the board.
+	 * @param x        The x-position of the piece.
+	 * @param y        The y-position of the piece.
+	 * @param features The array to fill, which must have room for every feature.
+	 *
+	 * @return The filled array.
+	 */
+	public double[] extract(Board board, int cleared, Tetromino piece, int x, int y, double[] features) {
+		if (piece != null && board == parent && (board.getHash() ^ board.getPieceHash(piece, x, y)) == parentHash) {
+			if (update(board, cleared, piece, x, y, features)) {
+				return features;
+			}
+		}
+
+		return scan(board, cleared, piece, x, y, features);
+	}
+
+	/**
+	 * Prepares to extract the features of a board with each of a number of single pieces added to
+	 * it. Those features are then found by updating the features of the board itself in the few
+	 * columns and rows touched by the piece, instead of by a scan over the whole board. This holds
+	 * until the board is changed in any other way.
+	 *
+	 * @param board The board.
+	 */
+	public void prepare(Board board) {
+		int width = board.getWidth();
+		int height = board.getHeight();
+		long cols = board.getFullRowMask();
+
+		parent = null;
+
+		// Boards with full rows, or with the top row capped, are left to a scan every time. So are
+		// boards a single column wide, as both of the neighbors of a column are then walls.
+
+		if (width == 1 || board.getRowMask(height - 1) != 0) {
+			return;
+		}
+
+		if (parentHeights.length < width) {
+			parentHeights = new int[width];
+			parentLowest = new int[width];
+			parentWells = new int[width];
+			parentCumulativeWells = new int[width];
+		}
+
+		scan(board, 0, null, 0, 0, parentFeatures);
+
+		if (parentFeatures[CLEARS] != 0) {
+			return;
+		}
+
+		// The lowest empty block of every column is found by walking up the rows until each column
+		// has met an empty block.
+
+		long solid = cols;
+
+		for (int row = 0; solid != 0; row++) {
+			long mask = board.getRowMask(row);
+
+			for (long fresh = solid & ~mask; fresh != 0; fresh &= fresh - 1) {
+				parentLowest[Long.numberOfTrailingZeros(fresh)] = row;
+			}
+
+			solid &= mask;
+		}
+
+		parentMinCount = 0;
+
+		for (int col = 0; col < width; col++) {
+			parentHeights[col] = board.getColumnHeight(col);
+			parentWells[col] = getWellDepth(board, col);
+			parentCumulativeWells[col] = getCumulativeWells(board, col);
+
+			if (parentHeights[col] == (int) parentFeatures[MAX_HEIGHT] - (int) parentFeatures[HEIGHT_RANGE]) {
+				parentMinCount++;
+			}
+		}
+
+		parent = board;
+		parentHash = board.getHash();
+	}
+
+	/**
+	 * Updates the features of the prepared board for a piece added to it. A piece which completes
+	 * a row or reaches the top row changes the features across the whole board, so the board has
+	 * to be scanned instead.
+	 *
+	 * @return Whether the features were updated.
+	 */
+	private boolean update(Board board, int cleared, Tetromino piece, int x, int y, double[] features) {
+		int width = board.getWidth();
+		int height = board.getHeight();
+		long cols = board.getFullRowMask();
+		int left = x + piece.getMinX();
+
+		if (y - piece.getMinY() >= height - 1) {
+			return false;
+		}
+
+		int rowTransitions = (int) parentFeatures[ROW_TRANSITIONS];
+
+		for (int i = 0; i < piece.getHeight(); i++) {
+			long mask = board.getRowMask(y - piece.getMinY() - i);
+
+			if (mask == cols) {
+				return false;
+			}
+
+			rowTransitions += getRowTransitions(mask, width) - getRowTransitions(mask & ~(piece.getRowMask(i) << left), width);
+		}
+
+		int sumHeight = (int) parentFeatures[SUM_HEIGHT];
+		int maxHeight = (int) parentFeatures[MAX_HEIGHT];
+		int minHeight = maxHeight - (int) parentFeatures[HEIGHT_RANGE];
+		int raised = 0;
+		int blockades = (int) parentFeatures[BLOCKADES];
+		int columnTransitions = (int) parentFeatures[COLUMN_TRANSITIONS];
+
+		for (int i = 0; i < piece.getWidth(); i++) {
+			int col = left + i;
+			int lo = y - piece.getBottom(i);
+			int hi = y - piece.getTop(i);
+			int curr = board.getColumnHeight(col);
+
+			sumHeight += curr - parentHeights[col];
+			maxHeight = Math.max(maxHeight, curr);
+
+			if (parentHeights[col] == minHeight && curr > minHeight) {
+				raised++;
+			}
+
+			// Every block above the lowest empty block of a column is a blockade. The piece only
+			// moves the lowest empty block if it fills it.
+
+			int lowest = parentLowest[col];
+			int fill = board.getColumnFill(col);
+
+			if (lo == lowest) {
+				lowest = hi + 1;
+
+				while (lowest < height && board.isOccupied(lowest, col)) {
+					lowest++;
+				}
+			}
+
+			blockades += (fill - lowest) - (fill - (hi - lo + 1) - parentLowest[col]);
+
+			// The blocks of the piece in a column are contiguous, so the column only changes
+			// between filled and empty just below and just above them. The floor counts as filled.
+
+			boolean below = lo == 0 || board.isOccupied(lo - 1, col);
+			boolean above = board.isOccupied(hi + 1, col);
+
+			columnTransitions += (below ? -1 : 1) + (above ? -1 : 1);
+		}
+
+		if (raised == parentMinCount) {
+			minHeight = Integer.MAX_VALUE;
+
+			for (int col = 0; col < width; col++) {
+				minHeight = Math.min(minHeight, board.getColumnHeight(col));
+			}
+		}
+
+		// The wells depend on the heights of the neighbors of a column as well.
+
+		int wells = (int) parentFeatures[WELLS];
+		int cumulativeWells = (int) parentFeatures[CUMULATIVE_WELLS];
+
+		for (int col = Math.max(left - 1, 0); col <= Math.min(left + piece.getWidth(), width - 1); col++) {
+			wells += getWellDepth(board, col) - parentWells[col];
+			cumulativeWells += getCumulativeWells(board, col) - parentCumulativeWells[col];
+		}
+
+		features[SUM_HEIGHT] = sumHeight;
+		features[MAX_HEIGHT] = maxHeight;
+		features[HEIGHT_RANGE] = maxHeight - minHeight;
+		features[MEAN_HEIGHT] = sumHeight / (double) width;
+		features[HOLES] = board.getHoles() + width;
+		features[WELLS] = wells;
+		features[BLOCKADES] = blockades;
+		features[CLEARS] = cleared;
+		features[ROW_TRANSITIONS] = rowTransitions;
+		features[COLUMN_TRANSITIONS] = columnTransitions;
+		features[ERODED_CELLS] = 0;
+		features[CUMULATIVE_WELLS] = cumulativeWells;
+		features[LANDING_HEIGHT] = getLandingHeight(piece, y);
+
+		return true;
+	}
+
+	/**
+	 * Extracts the features of a board by scanning all of its rows.
+	 */
+	private double[] scan(Board board, int cleared, Tetromino piece, int x, int y, double[] features) {
+		int width = board.getWidth();
+		int height = board.getHeight();
+		long cols = board.getFullRowMask();
+
+		if (heights.length < width) {
+			heights = new int[width];
+		}
+
+		if (opens.length < height + 1) {
+			opens = new long[height + 1];
+		}
+
+		// Every full row lies below the highest block of every column, so only the rows up to the
+		// lowest column need to be checked for being full.
+
+		int lowest = height;
+		int top = 0;
+
+		for (int col = 0; col < width; col++) {
+			lowest = Math.min(lowest, board.getColumnHeight(col));
+			top = Math.max(top, board.getColumnHeight(col));
+		}
+
+		int full = 0;
+		for (int row = 0; row < lowest; row++) {
+			if (board.getRowMask(row) == cols) {
+				full++;
+			}
+		}
+
+		// With no full rows, a block in the top row does not count towards the height of its
+		// column, and the rows above the height are only walked up to the row just above it.
+		// This is how the heights have always been measured, and the weights were evolved with it.
+
+		long capped = full == 0 && top == height ? board.getRowMask(height - 1) : 0;
+
+		// The height of a column is found by walking down from the top until a block outside of
+		// the full rows is found, which is usually within a few rows of the surface. The rows of
+		// each column above its highest such block are open.
+
+		long topped = 0;
+		int fills = 0;
+		int fullBelow = full;
+
+		for (int row = top - 1; row >= 0 && topped != cols; row--) {
+			long mask = board.getRowMask(row);
+
+			if (mask == cols) {
+				fullBelow--;
+				continue;
+			}
+
+			long blocks = row == height - 1 ? mask & ~capped : mask;
+
+			for (long fresh = blocks & ~topped; fresh != 0; fresh &= fresh - 1) {
+				int col = Long.numberOfTrailingZeros(fresh);
+				heights[col] = row - fullBelow + 1;
+				opens[row + 1] |= 1L << col;
+			}
+
+			topped |= blocks;
+		}
+
+		for (long fresh = cols & ~topped; fresh != 0; fresh &= fresh - 1) {
+			int col = Long.numberOfTrailingZeros(fresh);
+			heights[col] = 0;
+			opens[0] |= 1L << col;
+		}
+
+		// The holes of a column are the empty blocks below its height, less the blocks of the
+		// full rows, and every column also counts the empty block just above it as a hole unless
+		// it is capped at the top row.
+
+		for (int col = 0; col < width; col++) {
+			fills += board.getColumnFill(col);
+		}
+
+		int holes = width - Long.bitCount(capped & board.getRowMask(height - 2)) - fills + full * width + Long.bitCount(capped);
+		int blockades = 0;
+
+		int planes = Math.min(PLANES, 32 - Integer.numberOfLeadingZeros(height));
+
+		for (int k = 0; k < planes; k++) {
+			depths[k] = 0;
+		}
+
+		// A block in the top row of a capped column is a blockade only if the column reaches the
+		// row below it, as the scan of such a column ends at the top row.
+
+		long unreached = capped & ~board.getRowMask(height - 2);
+		long holed = 0;
+		long open = opens[0];
+		long below = cols;
+		long previous = 0;
+		int rowTransitions = 2 * (height - top + full);
+		int columnTransitions = 0;
+		int cumulativeWells = 0;
+
+		long leftWall = 1;
+		long rightWall = 1L << (width - 1);
+
+		for (int row = 0; row < top; row++) {
+			long mask = board.getRowMask(row);
+
+			if (mask != cols) {
+				long blocks = row == height - 1 ? mask & ~unreached : mask;
+
+				// Every block above an empty block of its column lies above the lowest hole.
+
+				blockades += Long.bitCount(blocks & holed);
+				holed |= ~blocks & cols;
+
+				// The walls count as filled for transitions, and so does the floor.
+
+				rowTransitions += getRowTransitions(mask, width);
+				columnTransitions += Long.bitCount((mask ^ below) & cols);
+				below = mask;
+
+				// A well block is an empty block, with nothing above it, whose neighbors are both
+				// filled. A well block contributes its depth within the well, so that a well of
+				// depth d contributes 1 + 2 + ... + d.
+
+				long wells = ~mask & open & (mask << 1 | leftWall) & (mask >>> 1 | rightWall);
+
+				if ((wells | previous) != 0) {
+					increment(depths, planes, wells);
+
+					for (int k = 0; k < planes; k++) {
+						cumulativeWells += Long.bitCount(depths[k]) << k;
+					}
+				}
+
+				previous = wells;
+			}
+
+			open |= opens[row + 1];
+		}
+
+		columnTransitions += Long.bitCount(below & cols);
+
+		for (int row = 0; row <= top; row++) {
+			opens[row] = 0;
+		}
+
+		int sumHeight = 0;
+		int minHeight = Integer.MAX_VALUE;
+		int maxHeight = Integer.MIN_VALUE;
+		int wells = 0;
+
+		for (int col = 0; col < width; col++) {
+			int curr = heights[col];
+			int prev = col == 0 ? Integer.MAX_VALUE : heights[col - 1];
+			int next = col == width - 1 ? Integer.MAX_VALUE : heights[col + 1];
+
+			sumHeight = sumHeight + curr;
+			holes = holes + curr;
+			minHeight = Math.min(curr, minHeight);
+			maxHeight = Math.max(curr, maxHeight);
+
+			// A well exists if a column's height is at least three less than the columns
+			// surrounding it. The borders of the board count as infinite-height columns.
+
+			if (curr < prev && curr < next) {
+				int depth = Math.min(prev, next) - curr;
+
+				if (depth >= 3) {
+					wells += depth;
+				}
+			}
+		}
+
+		int eroded = 0;
+		double landing = 0;
+
+		if (piece != null) {
+			int rows = 0;
+			int cells = 0;
+
+			for (int i = 0; i < piece.getHeight(); i++) {
+				int row = y - piece.getMinY() - i;
+
+				if (row >= 0 && row < height && board.getRowMask(row) == cols) {
+					rows++;
+					cells += Long.bitCount(piece.getRowMask(i));
+				}
+			}
+
+			eroded = rows * cells;
+			landing = getLandingHeight(piece, y);
+		}
+
+		assert blockades == countBlockades(board) : "scanned " + blockades + " blockades, counted " + countBlockades(board);
+
+		features[SUM_HEIGHT] = sumHeight;
+		features[MAX_HEIGHT] = maxHeight;
+		features[HEIGHT_RANGE] = maxHeight - minHeight;
+		features[MEAN_HEIGHT] = sumHeight / (double) width;
+		features[HOLES] = holes;
+		features[WELLS] = wells;
+		features[BLOCKADES] = blockades;
+		features[CLEARS] = cleared + full;
+		features[ROW_TRANSITIONS] = rowTransitions;
+		features[COLUMN_TRANSITIONS] = columnTransitions;
+		features[ERODED_CELLS] = eroded;
+		features[CUMULATIVE_WELLS] = cumulativeWells;
+		features[LANDING_HEIGHT] = landing;
+
+		return features;
+	}
+
+	/**
+	 * Counts the changes between filled and empty blocks along a row. The walls count as filled.
+	 *
+	 * @param mask  The row occupancy.
+	 * @param width The width of the board.
+	 *
+	 * @return The number of transitions.
+	 */
+	private static int getRowTransitions(long mask, int width) {
+		long inner = (1L << (width - 1)) - 1;
+
+		return Long.bitCount((mask ^ (mask >>> 1)) & inner) + (int) (~mask & 1) + (int) ((~mask >>> (width - 1)) & 1);
+	}
+
+	/**
+	 * Counts the blockades of a board block by block, the way the scoring system counted them
+	 * before the rows were scanned as masks: the full rows are removed, each column is walked up
+	 * to just above its highest block below the top row, and every block above an empty block of
+	 * the column is a blockade. Only used to check the scan when assertions are enabled.
+	 *
+	 * @param board The board.
+	 *
+	 * @return The number of blockades.
+	 */
+	private static int countBlockades(Board board) {
+		int height = board.getHeight();
+		int[] rows = new int[height];
+		int remaining = 0;
+
+		for (int row = 0; row < height; row++) {
+			if (!board.isRowFull(row)) {
+				rows[remaining++] = row;
+			}
+		}
+
+		int blockades = 0;
+
+		for (int col = 0; col < board.getWidth(); col++) {
+			int top = height - 1;
+
+			while (top > 0 && (top - 1 >= remaining || !board.isOccupied(rows[top - 1], col))) {
+				top--;
+			}
+
+			int empty = 0;
+
+			for (int i = 0; i <= top; i++) {
+				if (i >= remaining || !board.isOccupied(rows[i], col)) {
+					empty++;
+				} else if (empty > 0) {
+					blockades++;
+				}
+			}
+		}
+
+		return blockades;
+	}
+
+	/**
+	 * Determines the depth of a column as a well, which is zero unless the column is at least
+	 * three lower than both of its neighbors. The borders of the board count as infinite-height
+	 * columns. The board must have no full rows.
+	 *
+	 * @param board The board.
+	 * @param col   The column index.
+	 *
+	 * @return The depth.
+	 */
+	private static int getWellDepth(Board board, int col) {
+		int curr = board.getColumnHeight(col);
+		int prev = col == 0 ? Integer.MAX_VALUE : board.getColumnHeight(col - 1);
+		int next = col == board.getWidth() - 1 ? Integer.MAX_VALUE : board.getColumnHeight(col + 1);
+		int depth = Math.min(prev, next) - curr;
+
+		return depth >= 3 ? depth : 0;
+	}
+
+	/**
+	 * Determines the cumulative well depth of a column, which is the sum of the depths of its well
+	 * blocks within their wells. The board must have no full rows.
+	 *
+	 * @param board The board.
+	 * @param col   The column index.
+	 *
+	 * @return The cumulative well depth.
+	 */
+	private static int getCumulativeWells(Board board, int col) {
+		int width = board.getWidth();
+		int prev = col == 0 ? Integer.MAX_VALUE : board.getColumnHeight(col - 1);
+		int next = col == width - 1 ? Integer.MAX_VALUE : board.getColumnHeight(col + 1);
+
+		int sum = 0;
+		int depth = 0;
+
+		for (int row = board.getColumnHeight(col); row < Math.min(prev, next); row++) {
+			boolean walled = (col == 0 || board.isOccupied(row, col - 1)) && (col == width - 1 || board.isOccupied(row, col + 1));
+
+			depth = walled ? depth + 1 : 0;
+			sum += depth;
+		}
+
+		return sum;
+	}
+
+	/**
+	 * @return The height of the middle of a piece, measured from the floor.
+	 */
+	private static double getLandingHeight(Tetromino piece, int y) {
+		return y - (piece.getMinY() + piece.getMaxY()) / 2.0;
+	}
+
+	/**
+	 * Adds one to the bit-sliced count of every column in a mask, and resets the count of every
+	 * other column to zero.
+	 *
+	 * @param counts The bit-sliced counts.
+	 * @param planes The number of bits of each count.
+	 * @param mask   The columns to increment.
+	 */
+	private static void increment(long[] counts, int planes, long mask) {
+		long carry = mask;
+
+		for (int k = 0; k < planes; k++) {
+			long next = counts[k] & carry;
+			counts[k] = (counts[k] ^ carry) & mask;
+			carry = next;
+		}
+	}
+}
@@ -21,6 +21,9 @@
 
 package com.kauri.harddrop.ai;
 
+import com.kauri.harddrop.ai.MoveGenerator.Input;
+import java.util.Arrays;
+
 /**
  * @author Eric Fritz
  */
@@ -30,12 +33,30 @@ public class Move
 	private int rDelta = 0;
 	private int mDelta = 0;
 
+	private Input[] path = new Input[0];
+	private int pathLength = 0;
+
 	public Move(double score, int rotationDelta, int movementDelta) {
 		this.score = score;
 		this.rDelta = rotationDelta;
 		this.mDelta = movementDelta;
 	}
 
+	void set(double score, int rotationDelta, int movementDelta) {
+		this.score = score;
+		this.rDelta = rotationDelta;
+		this.mDelta = movementDelta;
+		this.pathLength = 0;
+	}
+
+	void addInput(Input input) {
+		if (pathLength == path.length) {
+			path = Arrays.copyOf(path, Math.max(16, pathLength * 2));
+		}
+
+		path[pathLength++] = input;
+	}
+
 	public double getScore() {
 		return score;
 	}
@@ -47,4 +68,20 @@ public class Move
 	public int getMovementDelta() {
 		return mDelta;
 	}
+
+	/**
+	 * @return Whether the move must be played by following its input path. A move without a path is
+	 *         played by rotating, then translating, then dropping the piece.
+	 */
+	public boolean hasPath() {
+		return pathLength > 0;
+	}
+
+	public int getPathLength() {
+		return pathLength;
+	}
+
+	public Input getInput(int i) {
+		return path[i];
+	}
 }
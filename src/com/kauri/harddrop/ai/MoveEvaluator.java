@@ -23,6 +23,8 @@ package com.kauri.harddrop.ai;
 
 import com.kauri.harddrop.Board;
 import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Eric Fritz
@@ -31,57 +33,624 @@ public class MoveEvaluator
 {
 	private ScoringSystem scoring;
 
+	/**
+	 * Placements of the piece being placed at each search depth. These are reused between searches
+	 * so that a search does not allocate.
+	 */
+	private PlacementList[] placements = { new PlacementList(), new PlacementList() };
+
+	/**
+	 * Generators of the reachable placements at each search depth, or <tt>null</tt> if only the
+	 * placements reached by rotating and translating at the top of the board are searched.
+	 */
+	private MoveGenerator[] generators;
+
+	private int bestRotation;
+	private int bestTranslation;
+	private int bestPlacement;
+
+	private TranspositionTable table;
+
+	/**
+	 * Estimated scores of the placements of the current piece, and the order in which they are
+	 * searched when pruning.
+	 */
+	private boolean pruning;
+	private double[] estimates = new double[0];
+	private int[] order = new int[0];
+	private long pruned;
+	private long expanded;
+
+	private long deadline = 0;
+	private List<Tetromino> candidates;
+
+	/**
+	 * The boards left by each placement of the last piece, which are scored together once every
+	 * placement has been found. The rotation and translation of each placement are kept alongside.
+	 */
+	private CandidateBatch batch = new CandidateBatch();
+	private double[] batchScores = new double[0];
+	private int[] batchRotations = new int[0];
+	private int[] batchTranslations = new int[0];
+
 	public MoveEvaluator(ScoringSystem scoring) {
 		this.scoring = scoring;
 	}
 
+	public ScoringSystem getScoring() {
+		return scoring;
+	}
+
+	public boolean isReachabilityEnabled() {
+		return generators != null;
+	}
+
+	/**
+	 * Sets whether the search considers every placement reachable by the piece, including those
+	 * which are tucked or spun beneath an overhang. Moves found this way carry an input path.
+	 *
+	 * @param enabled Whether to search every reachable placement.
+	 */
+	public void setReachabilityEnabled(boolean enabled) {
+		generators = enabled ? new MoveGenerator[] { new MoveGenerator(), new MoveGenerator() } : null;
+	}
+
+	public boolean isPruningEnabled() {
+		return pruning;
+	}
+
+	/**
+	 * Sets whether the search skips placements of the current piece whose best placement of the
+	 * preview piece cannot beat the best move found so far. The chosen move is the same either
+	 * way.
+	 *
+	 * @param enabled Whether to prune the search.
+	 */
+	public void setPruningEnabled(boolean enabled) {
+		this.pruning = enabled;
+	}
+
+	/**
+	 * @return The number of placements of the current piece skipped by pruned searches so far.
+	 */
+	public long getPruned() {
+		return pruned;
+	}
+
+	/**
+	 * @return The number of placements of the current piece searched by pruned searches so far.
+	 */
+	public long getExpanded() {
+		return expanded;
+	}
+
+	/**
+	 * Limits the time taken by the next search. Evaluators whose searches cannot be cut short
+	 * ignore this.
+	 *
+	 * @param deadline The time, as given by {@link System#nanoTime}, by which the next search
+	 *                 should finish.
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Retrieves the deadline of the next search and clears it, so that it does not carry over to
+	 * the search after.
+	 *
+	 * @param fallback The deadline to use if none was set.
+	 *
+	 * @return The deadline.
+	 */
+	protected long takeDeadline(long fallback) {
+		long deadline = this.deadline == 0 ? fallback : this.deadline;
+		this.deadline = 0;
+
+		return deadline;
+	}
+
+	/**
+	 * Sets the pieces which may follow the known upcoming pieces of the next search. Evaluators
+	 * which do not consider the unknown pieces ignore this.
+	 *
+	 * @param candidates The candidate pieces, each equally likely.
+	 */
+	public void setCandidates(List<Tetromino> candidates) {
+		this.candidates = candidates;
+	}
+
+	/**
+	 * Retrieves the pieces which may follow the known upcoming pieces of the next search and
+	 * clears them, so that they do not carry over to the search after.
+	 *
+	 * @return The candidate pieces, or <tt>null</tt> if none were set.
+	 */
+	protected List<Tetromino> takeCandidates() {
+		List<Tetromino> candidates = this.candidates;
+		this.candidates = null;
+
+		return candidates;
+	}
+
+	public TranspositionTable getTranspositionTable() {
+		return table;
+	}
+
+	/**
+	 * Sets the table used to cache the scores of positions which are reached more than once, either
+	 * within one search or across consecutive searches.
+	 *
+	 * @param table The table, or <tt>null</tt> to disable caching.
+	 */
+	public void setTranspositionTable(TranspositionTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * @return The number of known upcoming pieces, including the current piece, used by a search.
+	 */
+	public int getLookahead() {
+		return 2;
+	}
+
+	/**
+	 * Determines the best move for the first piece of a queue of known upcoming pieces. Every
+	 * piece after the first is assumed to start at its spawn position. This evaluator only looks at
+	 * the first two pieces of the queue.
+	 *
+	 * @param board  The board.
+	 * @param x      The x-position of the current tetromino.
+	 * @param y      The y-position of the current tetromino.
+	 * @param pieces The current tetromino followed by the known upcoming tetrominoes.
+	 * @param result The move to fill.
+	 *
+	 * @return The filled move.
+	 */
+	public Move getNextMove(Board board, int x, int y, List<Tetromino> pieces, Move result) {
+		if (pieces.size() < 2) {
+			return getNextMove(board, pieces.get(0), x, y, null, 0, 0, result);
+		}
+
+		Tetromino preview = pieces.get(1);
+		return getNextMove(board, pieces.get(0), x, y, preview, board.getSpawnX(preview), board.getSpawnY(preview), result);
+	}
+
 	public Move getNextMove(Board board, Tetromino current, int x1, int y1) {
 		return getNextMove(board, current, x1, y1, null, 0, 0);
 	}
 
 	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2) {
-		double best = Double.NEGATIVE_INFINITY;
-		Move move = new Move(best, 0, 0);
+		return getNextMove(board, current, x1, y1, preview, x2, y2, new Move(Double.NEGATIVE_INFINITY, 0, 0));
+	}
 
-		for (int i = 0; i < 4; i++) {
-			Move m = getBestMoveForRotatedPiece(board, i, current, x1, y1, preview, x2, y2);
+	/**
+	 * Determines the best move for the current piece, storing it into an existing move instance.
+	 * This does not allocate, so it can be called repeatedly without creating garbage.
+	 *
+	 * @param board   The board.
+	 * @param current The current tetromino.
+	 * @param x1      The x-position of the current tetromino.
+	 * @param y1      The y-position of the current tetromino.
+	 * @param preview The preview tetromino, or <tt>null</tt>.
+	 * @param x2      The x-position of the preview tetromino.
+	 * @param y2      The y-position of the preview tetromino.
+	 * @param result  The move to fill.
+	 *
+	 * @return The filled move.
+	 */
+	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, Move result) {
+		bestRotation = 0;
+		bestTranslation = 0;
+		bestPlacement = -1;
 
-			if (m.getScore() > best) {
-				best = m.getScore();
-				move = m;
-			}
+		if (table != null) {
+			table.nextGeneration(scoring);
+		}
+
+		double score = pruning && preview != null ? searchPruned(board, current, x1, y1, preview, x2, y2) : search(board, current, x1, y1, preview, x2, y2, 0, 0);
 
-			current = Tetromino.rotateClockwise(current);
+		if (generators != null && bestPlacement >= 0) {
+			generators[0].fill(bestPlacement, score, result);
+		} else {
+			result.set(score, bestRotation, bestTranslation);
 		}
 
-		return move;
+		return result;
 	}
 
-	private Move getBestMoveForRotatedPiece(Board board, int rot, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2) {
+	/**
+	 * Determines the score of the best placement of a piece without a preview, on a board which
+	 * was reached by clearing a number of rows.
+	 *
+	 * @param board  The board.
+	 * @param piece  The tetromino.
+	 * @param x      The x-position of the tetromino.
+	 * @param y      The y-position of the tetromino.
+	 * @param clears The number of rows already cleared on the way to this board.
+	 *
+	 * @return The best score.
+	 */
+	protected double getBestScore(Board board, Tetromino piece, int x, int y, int clears) {
+		return search(board, piece, x, y, null, 0, 0, clears, 0);
+	}
+
+	/**
+	 * Determines the score of the best placement of the current piece. The rotation and the
+	 * translation of the best placement are recorded only for the first search depth.
+	 *
+	 * @return The best score.
+	 */
+	private double search(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, int clears, int depth) {
+		// The root is never cached, as its best move has to be recorded. Below the root there is
+		// no preview piece, so the position is determined by the board, the piece and the number
+		// of rows cleared so far.
+
+		long key = 0;
+
+		if (table != null && depth > 0) {
+			key = table.getKey(board, current, x1, y1, generators == null ? clears : clears | 1 << 8);
+
+			int slot = table.probe(key);
+			if (slot >= 0) {
+				return table.getScore(slot);
+			}
+		}
+
+		// Every placement of the last piece is scored against this board.
+
+		if (preview == null) {
+			scoring.prepare(board);
+		}
+
+		if (generators != null) {
+			return searchReachable(board, current, x1, y1, preview, x2, y2, clears, depth, key);
+		}
+
+		PlacementList placements = enumerate(board, current, x1, y1, this.placements[depth]);
+
 		double best = Double.NEGATIVE_INFINITY;
-		Move move = new Move(best, 0, 0);
+		int localRotation = 0;
+		int localTranslation = 0;
 
-		int min = getMaxTranslationDeltaMagnitude(board, current, x1, y1, -1);
-		int max = getMaxTranslationDeltaMagnitude(board, current, x1, y1, +1);
+		// Without a transposition table to consult, every board left by the last piece is scored,
+		// so the boards are scored together as a batch.
 
-		for (int translation = min; translation <= max; translation++) {
-			int target = board.dropHeight(current, x1 + translation, y1);
-			board.addPiece(current, x1 + translation, target);
+		boolean batched = preview == null && table == null;
+
+		if (batched) {
+			batch.clear();
+		}
 
-			double score = preview == null ? scoring.score(board) : getNextMove(board, preview, x2, y2).getScore();
+		for (int i = 0; i < placements.size(); i++) {
+			Tetromino piece = placements.getPiece(i);
+			int x = placements.getX(i);
+			int y = placements.getY(i);
+
+			if (batched) {
+				addLeaf(board, piece, x, y, clears, placements.getRotation(i), x - x1);
+				continue;
+			}
+
+			double score = evaluatePlacement(board, piece, x, y, preview, x2, y2, clears, depth);
 
 			if (score > best) {
 				best = score;
-				move = new Move(score, rot, translation);
+				localRotation = placements.getRotation(i);
+				localTranslation = x - x1;
+			}
+		}
+
+		if (batched) {
+			scoring.score(batch, batchScores);
+
+			for (int i = 0; i < batch.size(); i++) {
+				if (batchScores[i] > best) {
+					best = batchScores[i];
+					localRotation = batchRotations[i];
+					localTranslation = batchTranslations[i];
+				}
+			}
+		}
+
+		if (depth == 0) {
+			bestRotation = localRotation;
+			bestTranslation = localTranslation;
+		} else if (table != null) {
+			table.store(key, best, localRotation, localTranslation, preview == null ? 1 : 2);
+		}
+
+		return best;
+	}
+
+	/**
+	 * Determines the score of the best reachable placement of the current piece. The index of the
+	 * best placement is recorded only for the first search depth.
+	 *
+	 * @return The best score.
+	 */
+	private double searchReachable(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, int clears, int depth, long key) {
+		MoveGenerator generator = generators[depth];
+		int count = generator.generate(board, current, x1, y1);
+
+		double best = Double.NEGATIVE_INFINITY;
+		int local = -1;
+
+		if (preview == null && table == null) {
+			batch.clear();
+
+			for (int i = 0; i < count; i++) {
+				addLeaf(board, generator.getPiece(i), generator.getX(i), generator.getY(i), clears, 0, 0);
+			}
+
+			scoring.score(batch, batchScores);
+
+			for (int i = 0; i < count; i++) {
+				if (batchScores[i] > best) {
+					best = batchScores[i];
+					local = i;
+				}
+			}
+		} else {
+			for (int i = 0; i < count; i++) {
+				double score = evaluatePlacement(board, generator.getPiece(i), generator.getX(i), generator.getY(i), preview, x2, y2, clears, depth);
+
+				if (score > best) {
+					best = score;
+					local = i;
+				}
+			}
+		}
+
+		if (depth == 0) {
+			bestPlacement = local;
+		} else if (table != null) {
+			table.store(key, best, 0, 0, preview == null ? 1 : 2);
+		}
+
+		return best;
+	}
+
+	/**
+	 * Determines the score of the best placement of the current piece followed by the preview
+	 * piece, as the exhaustive search does, but searches the placements of the current piece from
+	 * the most to the least promising. A placement is skipped when a bound on the score of the
+	 * preview piece shows that it can at best tie with a better or an earlier placement, so the
+	 * same placement is chosen.
+	 *
+	 * @return The best score.
+	 */
+	private double searchPruned(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2) {
+		PlacementList placements = listPlacements(board, current, x1, y1);
+
+		if (estimates.length < placements.size()) {
+			estimates = new double[placements.size()];
+			order = new int[placements.size()];
+		}
+
+		// The board left by the current piece alone is a cheap estimate of how promising it is.
+
+		scoring.prepare(board);
+		batch.clear();
+
+		for (int i = 0; i < placements.size(); i++) {
+			board.addPiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+			scoring.add(batch, board, 0, placements.getPiece(i), placements.getX(i), placements.getY(i));
+			board.removePiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+		}
+
+		scoring.score(batch, estimates);
+
+		for (int i = 0; i < placements.size(); i++) {
+			int j = i;
+			while (j > 0 && estimates[order[j - 1]] < estimates[i]) {
+				order[j] = order[j - 1];
+				j--;
+			}
+
+			order[j] = i;
+		}
+
+		// Without tucks, a preview piece which starts above every column only comes to rest on
+		// top of the columns it covers, which gives a tighter bound.
+
+		int lowest = Integer.MAX_VALUE;
+		for (int rot = 0; rot < Tetromino.ROTATIONS; rot++) {
+			lowest = Math.min(lowest, y2 - Tetromino.get(preview.getShape(), preview.getRotation() + rot).getMaxY());
+		}
+
+		double best = Double.NEGATIVE_INFINITY;
+		int local = -1;
+
+		for (int n = 0; n < placements.size(); n++) {
+			int i = order[n];
+			int cleared = board.placePiece(placements.getPiece(i), placements.getX(i), placements.getY(i));
+
+			boolean tucks = generators != null;
+			for (int col = 0; col < board.getWidth() && !tucks; col++) {
+				tucks = board.getColumnHeight(col) > lowest;
+			}
+
+			double bound = scoring.getUpperBound(board, cleared, tucks);
+
+			if (bound < best || bound == best && i > local) {
+				pruned++;
+			} else {
+				expanded++;
+
+				double score = search(board, preview, x2, y2, null, 0, 0, cleared, 1);
+
+				if (score > best || score == best && i < local) {
+					best = score;
+					local = i;
+				}
+			}
+
+			board.undoPiece();
+		}
+
+		if (generators != null) {
+			bestPlacement = local;
+		} else if (local >= 0) {
+			bestRotation = placements.getRotation(local);
+			bestTranslation = placements.getX(local) - x1;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Lists the placements of the current piece in the order in which the exhaustive search
+	 * visits them.
+	 */
+	private PlacementList listPlacements(Board board, Tetromino current, int x1, int y1) {
+		if (generators == null) {
+			return enumerate(board, current, x1, y1, placements[0]);
+		}
+
+		int count = generators[0].generate(board, current, x1, y1);
+		placements[0].clear();
+
+		for (int i = 0; i < count; i++) {
+			placements[0].add(generators[0].getPiece(i), 0, generators[0].getX(i), generators[0].getY(i));
+		}
+
+		return placements[0];
+	}
+
+	/**
+	 * Determines the score of a single placement of the current piece. If there is a preview
+	 * piece, this is the score of the best placement of the preview piece afterwards. The board is
+	 * left unmodified.
+	 *
+	 * @return The score of the placement.
+	 */
+	protected double evaluatePlacement(Board board, Tetromino current, int x, int y, Tetromino preview, int x2, int y2, int clears, int depth) {
+		// The last piece is scored with its completed rows still on the board, as the scoring
+		// system clears them virtually. Any earlier piece has its rows cleared for real so that
+		// the following pieces are evaluated against the board they would actually land on.
+
+		if (preview == null) {
+			board.addPiece(current, x, y);
+			double score = scoreLeaf(board, clears, current, x, y);
+			board.removePiece(current, x, y);
+
+			return score;
+		}
+
+		int cleared = board.placePiece(current, x, y);
+		double score = search(board, preview, x2, y2, null, 0, 0, clears + cleared, depth + 1);
+		board.undoPiece();
+
+		return score;
+	}
+
+	/**
+	 * Adds the board left by a placement of the last piece to the batch.
+	 */
+	private void addLeaf(Board board, Tetromino piece, int x, int y, int clears, int rotation, int translation) {
+		board.addPiece(piece, x, y);
+		int i = scoring.add(batch, board, clears, piece, x, y);
+		board.removePiece(piece, x, y);
+
+		if (i == batchScores.length) {
+			batchScores = Arrays.copyOf(batchScores, Math.max(16, i * 2));
+			batchRotations = Arrays.copyOf(batchRotations, batchScores.length);
+			batchTranslations = Arrays.copyOf(batchTranslations, batchScores.length);
+		}
+
+		batchRotations[i] = rotation;
+		batchTranslations[i] = translation;
+	}
+
+	/**
+	 * Scores a board, consulting the transposition table first if there is one. If the score
+	 * depends on the placement of the last piece, the placement is part of the key.
+	 *
+	 * @return The score of the board.
+	 */
+	private double scoreLeaf(Board board, int clears, Tetromino piece, int x, int y) {
+		if (table == null) {
+			return scoring.score(board, clears, piece, x, y);
+		}
+
+		long key = scoring.isPlacementDependent() ? table.getKey(board, piece, x, y, clears) : table.getKey(board, null, 0, 0, clears);
+
+		int slot = table.probe(key);
+		if (slot >= 0) {
+			return table.getScore(slot);
+		}
+
+		double score = scoring.score(board, clears, piece, x, y);
+		table.store(key, score, 0, 0, 0);
+
+		return score;
+	}
+
+	/**
+	 * Lists the distinct placements of a piece reached by rotating it where it starts, translating
+	 * it and then dropping it, in the order of rotation and then of translation. A placement which
+	 * covers the same cells as an earlier one reaches the same board, so it is left out. The list
+	 * does not depend on the evaluator, so it may be filled on any thread which owns it.
+	 *
+	 * @param board      The board.
+	 * @param piece      The tetromino.
+	 * @param x          The x-position of the tetromino.
+	 * @param y          The y-position of the tetromino.
+	 * @param placements The list to fill, which is cleared first.
+	 *
+	 * @return The filled list.
+	 */
+	protected PlacementList enumerate(Board board, Tetromino piece, int x, int y, PlacementList placements) {
+		int width = board.getWidth();
+
+		if (placements.rests.length < width) {
+			placements.rests = new int[width];
+		}
+
+		int top = 0;
+		for (int col = 0; col < width; col++) {
+			top = Math.max(top, board.getColumnHeight(col));
+		}
+
+		placements.clear();
+		placements.seen.clear(board);
+
+		for (int rot = 0; rot < Tetromino.ROTATIONS; rot++) {
+			Tetromino current = Tetromino.get(piece.getShape(), piece.getRotation() + rot);
+
+			// A piece which starts above every block can be translated as far as the walls.
+
+			int min = -current.getMinX() - x;
+			int max = width - 1 - current.getMaxX() - x;
+
+			if (y - current.getMaxY() < top || min > 0 || max < 0) {
+				min = getMaxTranslationDeltaMagnitude(board, current, x, y, -1);
+				max = getMaxTranslationDeltaMagnitude(board, current, x, y, +1);
 			}
 
-			board.removePiece(current, x1 + translation, target);
+			board.dropHeights(current, placements.rests);
+
+			for (int translation = min; translation <= max; translation++) {
+				int target = placements.rests[x + translation];
+
+				// A resting position above the starting position means that the piece starts
+				// inside of the pile, so it has to be stepped down from there instead.
+
+				if (target > y) {
+					target = board.dropHeight(current, x + translation, y);
+				}
+
+				if (placements.seen.add(current, x + translation, target)) {
+					placements.add(current, rot, x + translation, target);
+				}
+			}
 		}
 
-		return move;
+		return placements;
 	}
 
-	private int getMaxTranslationDeltaMagnitude(Board board, Tetromino current, int xPos, int yPos, int step) {
+	protected int getMaxTranslationDeltaMagnitude(Board board, Tetromino current, int xPos, int yPos, int step) {
 		int delta = 0;
 		while (board.canMove(current, xPos + delta + step, yPos)) {
 			delta += step;
@@ -0,0 +1,489 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Shape;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+
+/**
+ * Generates every resting placement of a piece which can be reached from its current position by
+ * a sequence of inputs, including placements which are tucked or spun beneath an overhang.
+ * <p>
+ * The reachable (rotation, x, y) states of the piece are found as a bitboard: one word per row and
+ * rotation, with bit <tt>x</tt> set when the origin of the piece can reach column <tt>x</tt>. A
+ * state which fits and is next to a reachable state is reachable, so the states are flooded row
+ * by row with shifts and masks until nothing changes. Only the placement which is actually played
+ * needs an input path, so a breadth-first search over the individual states is run by
+ * {@link #fill} to find the shortest path to it.
+ * <p>
+ * Every position above the pile is reachable from every other, so the search starts from the
+ * lowest row at which the piece, in any rotation and with any kick, is still above the pile. The
+ * soft drops down to that row are only added to a path when the path continues beneath it.
+ * <p>
+ * The generator reuses its buffers between calls, so it does not allocate once it has seen the
+ * largest board it is used with. The placements of a call are only valid until the next call.
+ *
+ * @author Eric Fritz
+ */
+public class MoveGenerator
+{
+	public enum Input
+	{
+		LEFT,
+		RIGHT,
+		ROTATE_CLOCKWISE,
+		ROTATE_COUNTER_CLOCKWISE,
+		SOFT_DROP,
+		HARD_DROP
+	}
+
+	private static final Input[] inputs = Input.values();
+
+	private Board board;
+	private Shape shape;
+	private int startRotation;
+	private int startX;
+	private int startY;
+	private int lift;
+
+	private int width;
+	private int top;
+	private int stride;
+
+	/**
+	 * The x-positions at which each rotation of the piece fits, indexed by rotation and then by
+	 * row. Rows up to one above the highest tracked row are stored.
+	 */
+	private long[] fits = new long[0];
+
+	/**
+	 * The x-positions at which each rotation of the piece lies between the walls of the board.
+	 */
+	private long[] valids = new long[Tetromino.ROTATIONS];
+
+	/**
+	 * The x-positions reachable by each rotation of the piece, indexed like {@link #fits}.
+	 */
+	private long[] reach = new long[0];
+
+	/**
+	 * The states of {@link #reach} which have already been expanded.
+	 */
+	private long[] expanded = new long[0];
+
+	private long[] visited = new long[0];
+	private int[] parents = new int[0];
+	private int[] queue = new int[0];
+
+	private int count;
+	private Tetromino[] pieces = new Tetromino[0];
+	private int[] xs = new int[0];
+	private int[] ys = new int[0];
+
+	private Input[] path = new Input[0];
+
+	private PlacementSet seen = new PlacementSet();
+
+	/**
+	 * Generates the placements of a piece.
+	 *
+	 * @param board The board.
+	 * @param piece The piece.
+	 * @param x     The x-position of the piece.
+	 * @param y     The y-position of the piece.
+	 *
+	 * @return The number of placements.
+	 */
+	public int generate(Board board, Tetromino piece, int x, int y) {
+		this.board = board;
+		shape = piece.getShape();
+		startRotation = piece.getRotation();
+		startX = x;
+		width = board.getWidth();
+		count = 0;
+
+		// No block of a piece lies more than two rows from its origin, so a piece whose origin is
+		// three rows above the highest block of the board can be rotated and kicked down by a row
+		// without touching the pile. Rows above that are never tracked.
+
+		top = 0;
+		for (int col = 0; col < width; col++) {
+			top = Math.max(top, board.getColumnHeight(col));
+		}
+
+		top += 3;
+		startY = Math.min(y, top);
+		lift = y - startY;
+		stride = top + 2;
+
+		if (fits.length < Tetromino.ROTATIONS * stride) {
+			fits = new long[Tetromino.ROTATIONS * stride];
+			reach = new long[Tetromino.ROTATIONS * stride];
+			expanded = new long[Tetromino.ROTATIONS * stride];
+		}
+
+		for (int rot = 0; rot < Tetromino.ROTATIONS; rot++) {
+			computeFits(Tetromino.get(shape, rot), rot);
+		}
+
+		Arrays.fill(reach, 0, Tetromino.ROTATIONS * stride, 0);
+		Arrays.fill(expanded, 0, Tetromino.ROTATIONS * stride, 0);
+
+		if ((fits[startRotation * stride + startY] & (1L << x)) == 0) {
+			return 0;
+		}
+
+		reach[startRotation * stride + startY] = 1L << x;
+		flood();
+
+		// A reachable state rests on the pile if it cannot move down. The placements are listed
+		// by rotation, starting with the current one, then from the top row down. Rotations which
+		// share a footprint reach many of the same cells, which are only listed once.
+
+		seen.clear(board);
+
+		for (int i = 0; i < Tetromino.ROTATIONS; i++) {
+			Tetromino current = Tetromino.get(shape, startRotation + i);
+
+			if (current.getRotation() != ((startRotation + i) & (Tetromino.ROTATIONS - 1))) {
+				continue;
+			}
+
+			int base = current.getRotation() * stride;
+
+			for (int row = top; row >= 0; row--) {
+				long below = row == 0 ? 0 : fits[base + row - 1];
+
+				for (long mask = reach[base + row] & ~below; mask != 0; mask &= mask - 1) {
+					if (seen.add(current, Long.numberOfTrailingZeros(mask), row)) {
+						addPlacement(current, Long.numberOfTrailingZeros(mask), row);
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return The number of placements found by the last call to {@link #generate}.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public Tetromino getPiece(int i) {
+		return pieces[i];
+	}
+
+	public int getX(int i) {
+		return xs[i];
+	}
+
+	public int getY(int i) {
+		return ys[i];
+	}
+
+	/**
+	 * Stores the score of a placement into a move, along with the shortest input path which plays
+	 * it from the position the piece was generated from. The path always ends with a hard drop.
+	 *
+	 * @param i      The index of the placement.
+	 * @param score  The score of the placement.
+	 * @param result The move to fill.
+	 */
+	public void fill(int i, double score, Move result) {
+		result.set(score, (pieces[i].getRotation() - startRotation) & (Tetromino.ROTATIONS - 1), xs[i] - startX);
+
+		int length = 0;
+		for (int state = findPath(pieces[i].getRotation(), xs[i], ys[i]); parents[state] >= 0; state = parents[state] >>> 3) {
+			if (length == path.length) {
+				path = Arrays.copyOf(path, Math.max(16, length * 2));
+			}
+
+			path[length++] = inputs[parents[state] & 7];
+		}
+
+		// The path is recorded backwards. The soft drops from the actual position of the piece
+		// down to the start of the search are only needed before the first soft drop of the path,
+		// as every other input has the same effect anywhere above the pile.
+
+		boolean lifted = false;
+
+		for (int j = length - 1; j >= 0; j--) {
+			if (path[j] == Input.SOFT_DROP && !lifted) {
+				for (int k = 0; k < lift; k++) {
+					result.addInput(Input.SOFT_DROP);
+				}
+
+				lifted = true;
+			}
+
+			result.addInput(path[j]);
+		}
+
+		result.addInput(Input.HARD_DROP);
+	}
+
+	/**
+	 * Computes the x-positions at which a rotation of the piece fits in each row. A piece collides
+	 * at <tt>x</tt> if one of its blocks, <tt>k</tt> columns to the right of its origin, overlaps
+	 * the block at column <tt>x + k</tt>, so shifting each row of the board left by <tt>k</tt>
+	 * gives the colliding x-positions of that block.
+	 */
+	private void computeFits(Tetromino piece, int rot) {
+		int span = width - piece.getWidth() + 1;
+		long valid = (span == Long.SIZE ? -1L : (1L << span) - 1) << -piece.getMinX();
+
+		for (int row = 0; row < stride; row++) {
+			long collisions = 0;
+
+			// The rows of the board above the highest block are empty.
+
+			if (row - piece.getMaxY() < 0) {
+				collisions = -1L;
+			} else if (row - piece.getMaxY() < top - 3) {
+				for (int i = 0; i < piece.getHeight(); i++) {
+					int y = row - piece.getMinY() - i;
+
+					if (y >= board.getHeight()) {
+						continue;
+					}
+
+					long blocks = board.getRowMask(y);
+
+					for (long mask = piece.getRowMask(i); mask != 0; mask &= mask - 1) {
+						int k = piece.getMinX() + Long.numberOfTrailingZeros(mask);
+						collisions |= k >= 0 ? blocks >>> k : blocks << -k;
+					}
+				}
+			}
+
+			fits[rot * stride + row] = valid & ~collisions;
+		}
+
+		valids[rot] = valid;
+	}
+
+	/**
+	 * Expands the reachable states until no move leads to a new one. Each pass walks the rows from
+	 * the top down, so states reached by falling are expanded in the same pass. Another pass is
+	 * only needed when a rotation kicks a piece upwards, or into a rotation which was already
+	 * expanded in the same row.
+	 */
+	private void flood() {
+		boolean changed = true;
+
+		while (changed) {
+			changed = false;
+
+			for (int row = top; row >= 0; row--) {
+				for (int rot = 0; rot < Tetromino.ROTATIONS; rot++) {
+					int index = rot * stride + row;
+					long states = reach[index];
+
+					if (states == expanded[index]) {
+						continue;
+					}
+
+					long fit = fits[index];
+
+					// A row without collisions is a single run, which is reached entirely from any
+					// state in it. Otherwise the states spread out one column at a time.
+
+					if (fit == valids[rot]) {
+						states = fit;
+					} else {
+						long previous;
+						do {
+							previous = states;
+							states |= ((states << 1) | (states >>> 1)) & fit;
+						} while (states != previous);
+					}
+
+					// Only the states which have not been expanded before can lead anywhere new.
+
+					long fresh = states & ~expanded[index];
+					reach[index] = states;
+					expanded[index] = states;
+
+					if (row > 0) {
+						reach[index - 1] |= fresh & fits[index - 1];
+					}
+
+					Tetromino current = Tetromino.get(shape, rot);
+					changed |= rotate(fresh, row, rot, Tetromino.rotateClockwise(current));
+					changed |= rotate(fresh, row, rot, Tetromino.rotateCounterClockwise(current));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the states reached by rotating a set of states. Each kick offset is applied to the
+	 * states for which no earlier offset fits.
+	 *
+	 * @return Whether a state was added to a row or rotation which has already been expanded.
+	 */
+	private boolean rotate(long states, int row, int rot, Tetromino rotated) {
+		int target = rotated.getRotation();
+
+		if (target == rot) {
+			return false;
+		}
+
+		boolean changed = false;
+
+		for (int i = 0; i < rotated.getKickCount() && states != 0; i++) {
+			int kx = rotated.getKickX(i);
+			int ky = row + rotated.getKickY(i);
+
+			if (ky < 0) {
+				continue;
+			}
+
+			long fit = fits[target * stride + ky];
+			long kicked = states & (kx >= 0 ? fit >>> kx : fit << -kx);
+			states &= ~kicked;
+
+			// A piece kicked above the tracked rows is above the pile, where it can already reach
+			// every placement without being kicked.
+
+			if (kicked != 0 && ky <= top) {
+				long moved = kx >= 0 ? kicked << kx : kicked >>> -kx;
+				int index = target * stride + ky;
+
+				if ((reach[index] | moved) != reach[index]) {
+					reach[index] |= moved;
+					changed |= ky > row || target < rot;
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Searches the individual states breadth-first for the shortest path to a placement.
+	 *
+	 * @return The state from which the piece is hard dropped onto the placement.
+	 */
+	private int findPath(int rotation, int x, int y) {
+		int states = Tetromino.ROTATIONS * stride * width;
+
+		if (parents.length < states) {
+			visited = new long[(states + 63) >>> 6];
+			parents = new int[states];
+			queue = new int[states];
+		} else {
+			Arrays.fill(visited, 0, (states + 63) >>> 6, 0);
+		}
+
+		int head = 0;
+		int tail = 0;
+
+		int start = encode(startRotation, startX, startY);
+		visited[start >>> 6] |= 1L << start;
+		parents[start] = -1;
+		queue[tail++] = start;
+
+		while (head < tail) {
+			int state = queue[head++];
+
+			int rot = state / (stride * width);
+			int sy = (state - rot * stride * width) / width;
+			int sx = state - rot * stride * width - sy * width;
+
+			Tetromino current = Tetromino.get(shape, rot);
+
+			if (rot == rotation && sx == x && board.dropHeight(current, sx, sy) == y) {
+				return state;
+			}
+
+			tail = visit(state, current, sx, sy - 1, Input.SOFT_DROP, tail);
+			tail = visit(state, current, sx - 1, sy, Input.LEFT, tail);
+			tail = visit(state, current, sx + 1, sy, Input.RIGHT, tail);
+
+			for (int direction = 0; direction < 2; direction++) {
+				Tetromino rotated = direction == 0 ? Tetromino.rotateClockwise(current) : Tetromino.rotateCounterClockwise(current);
+
+				if (rotated == current) {
+					break;
+				}
+
+				for (int i = 0; i < rotated.getKickCount(); i++) {
+					int kx = sx + rotated.getKickX(i);
+					int ky = sy + rotated.getKickY(i);
+
+					if (board.canMove(rotated, kx, ky)) {
+						tail = visit(state, rotated, kx, ky, direction == 0 ? Input.ROTATE_CLOCKWISE : Input.ROTATE_COUNTER_CLOCKWISE, tail);
+						break;
+					}
+				}
+			}
+		}
+
+		throw new IllegalStateException("Placement is not reachable.");
+	}
+
+	/**
+	 * Enqueues a state if it fits, lies within the tracked rows, and has not been visited yet.
+	 *
+	 * @return The new tail of the queue.
+	 */
+	private int visit(int parent, Tetromino piece, int x, int y, Input input, int tail) {
+		if (y > top || !board.canMove(piece, x, y)) {
+			return tail;
+		}
+
+		int state = encode(piece.getRotation(), x, y);
+
+		if ((visited[state >>> 6] & (1L << state)) == 0) {
+			visited[state >>> 6] |= 1L << state;
+			parents[state] = parent << 3 | input.ordinal();
+			queue[tail++] = state;
+		}
+
+		return tail;
+	}
+
+	private void addPlacement(Tetromino piece, int x, int y) {
+		if (count == pieces.length) {
+			int capacity = Math.max(64, count * 2);
+
+			pieces = Arrays.copyOf(pieces, capacity);
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+		}
+
+		pieces[count] = piece;
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+	}
+
+	private int encode(int rot, int x, int y) {
+		return (rot * stride + y) * width + x;
+	}
+}
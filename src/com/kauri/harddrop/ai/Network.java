@@ -0,0 +1,280 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * A small neural network which scores boards, as an alternative to the weighted features of a
+ * {@link ScoringSystem}. The network has a single hidden layer of rectified linear units and a
+ * linear output. Its inputs describe a board of a fixed width with its full rows removed:
+ * <ul>
+ * <li>the height of each column, divided by the height of the board,</li>
+ * <li>the holes of each column, divided by the height of the board,</li>
+ * <li>the blocks of the rows just below the highest block, as zero or one, row by row from the
+ * top and column by column from the left, with rows below the floor counting as filled,</li>
+ * <li>and the number of rows cleared.</li>
+ * </ul>
+ * The weights are kept in flat arrays. A batch of boards is scored as a single matrix product,
+ * one input at a time for every board, which is much faster than scoring the boards one by one.
+ * <p>
+ * Networks are trained offline and loaded from a text file of whitespace-separated numbers: the
+ * width, the number of rows and the number of hidden units, then the hidden weights row by row
+ * (one row of every input per hidden unit), the hidden biases, the output weights and the output
+ * bias.
+ *
+ * @author Eric Fritz
+ */
+public class Network
+{
+	private int width;
+	private int rows;
+	private int inputs;
+	private int hidden;
+
+	private double[] hiddenWeights;
+	private double[] hiddenBiases;
+	private double[] outputWeights;
+	private double outputBias;
+
+	/**
+	 * Creates a new Network.
+	 *
+	 * @param width         The width of the boards which are scored.
+	 * @param rows          The number of rows below the highest block given as inputs.
+	 * @param hidden        The number of hidden units.
+	 * @param hiddenWeights The weights of the hidden units, one row of every input per unit.
+	 * @param hiddenBiases  The biases of the hidden units.
+	 * @param outputWeights The weights of the output.
+	 * @param outputBias    The bias of the output.
+	 */
+	public Network(int width, int rows, int hidden, double[] hiddenWeights, double[] hiddenBiases, double[] outputWeights, double outputBias) {
+		this.width = width;
+		this.rows = rows;
+		this.inputs = getInputs(width, rows);
+		this.hidden = hidden;
+
+		if (hiddenWeights.length != hidden * inputs || hiddenBiases.length != hidden || outputWeights.length != hidden) {
+			throw new IllegalArgumentException("Network weights do not match its dimensions.");
+		}
+
+		this.hiddenWeights = hiddenWeights;
+		this.hiddenBiases = hiddenBiases;
+		this.outputWeights = outputWeights;
+		this.outputBias = outputBias;
+	}
+
+	/**
+	 * Loads a network from a file.
+	 *
+	 * @param filename The name of the file.
+	 *
+	 * @return The network.
+	 *
+	 * @throws IOException If the file cannot be read or does not describe a network.
+	 */
+	public static Network load(String filename) throws IOException {
+		try (Scanner scanner = new Scanner(new BufferedReader(new FileReader(filename)))) {
+			int width = scanner.nextInt();
+			int rows = scanner.nextInt();
+			int hidden = scanner.nextInt();
+
+			double[] hiddenWeights = read(scanner, hidden * getInputs(width, rows));
+			double[] hiddenBiases = read(scanner, hidden);
+			double[] outputWeights = read(scanner, hidden);
+			double outputBias = scanner.nextDouble();
+
+			return new Network(width, rows, hidden, hiddenWeights, hiddenBiases, outputWeights, outputBias);
+		} catch (NoSuchElementException | IllegalArgumentException e) {
+			throw new IOException("Malformed network file " + filename + ".", e);
+		}
+	}
+
+	private static double[] read(Scanner scanner, int count) {
+		double[] values = new double[count];
+
+		for (int i = 0; i < count; i++) {
+			values[i] = scanner.nextDouble();
+		}
+
+		return values;
+	}
+
+	/**
+	 * @return The number of inputs of a network for boards of a width.
+	 */
+	private static int getInputs(int width, int rows) {
+		return 2 * width + rows * width + 1;
+	}
+
+	/**
+	 * @return The width of the boards which are scored.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The number of inputs.
+	 */
+	public int getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Computes the inputs of the network for a board.
+	 *
+	 * @param board   The board, which must be as wide as the network.
+	 * @param cleared The number of rows already cleared on the way to this board.
+	 * @param inputs  The array to fill, which must have room for every input.
+	 *
+	 * @return The filled array.
+	 */
+	public double[] encode(Board board, int cleared, double[] inputs) {
+		int height = board.getHeight();
+		long cols = board.getFullRowMask();
+
+		Arrays.fill(inputs, 0, this.inputs, 0);
+
+		int lowest = height;
+		int top = 0;
+
+		for (int col = 0; col < width; col++) {
+			lowest = Math.min(lowest, board.getColumnHeight(col));
+			top = Math.max(top, board.getColumnHeight(col));
+		}
+
+		int full = 0;
+		for (int row = 0; row < lowest; row++) {
+			if (board.getRowMask(row) == cols) {
+				full++;
+			}
+		}
+
+		// Walk down from the top, skipping the full rows as if the rows above had collapsed onto
+		// them. A column's height is set by its highest block, and every empty block below it is
+		// a hole.
+
+		long topped = 0;
+		int below = full;
+		int row = 2 * width;
+
+		for (int r = top - 1; r >= 0; r--) {
+			long mask = board.getRowMask(r);
+
+			if (mask == cols) {
+				below--;
+				continue;
+			}
+
+			for (long fresh = mask & ~topped; fresh != 0; fresh &= fresh - 1) {
+				inputs[Long.numberOfTrailingZeros(fresh)] = (r - below + 1) / (double) height;
+			}
+
+			topped |= mask;
+
+			for (long holes = ~mask & topped & cols; holes != 0; holes &= holes - 1) {
+				inputs[width + Long.numberOfTrailingZeros(holes)]++;
+			}
+
+			if (topped != 0 && row < 2 * width + rows * width) {
+				for (long blocks = mask; blocks != 0; blocks &= blocks - 1) {
+					inputs[row + Long.numberOfTrailingZeros(blocks)] = 1;
+				}
+
+				row += width;
+			}
+		}
+
+		for (; row < 2 * width + rows * width; row++) {
+			inputs[row] = 1;
+		}
+
+		for (int col = 0; col < width; col++) {
+			inputs[width + col] /= height;
+		}
+
+		inputs[this.inputs - 1] = cleared + full;
+
+		return inputs;
+	}
+
+	/**
+	 * Scores a single board from its inputs.
+	 *
+	 * @param inputs The inputs of the board.
+	 *
+	 * @return The score.
+	 */
+	public double evaluate(double[] inputs) {
+		double score = outputBias;
+
+		for (int j = 0; j < hidden; j++) {
+			double sum = hiddenBiases[j];
+			for (int i = 0; i < this.inputs; i++) {
+				sum += hiddenWeights[j * this.inputs + i] * inputs[i];
+			}
+
+			score += outputWeights[j] * Math.max(0, sum);
+		}
+
+		return score;
+	}
+
+	/**
+	 * Scores every board of a batch. The sums of a hidden unit are accumulated for every board
+	 * at once, one input at a time, and each score is exactly the score of the board scored
+	 * alone.
+	 *
+	 * @param batch  The inputs of the boards.
+	 * @param scores The array to fill with the score of each board.
+	 */
+	public void evaluate(CandidateBatch batch, double[] scores) {
+		int size = batch.size();
+		double[] sums = new double[size];
+
+		Arrays.fill(scores, 0, size, outputBias);
+
+		for (int j = 0; j < hidden; j++) {
+			Arrays.fill(sums, hiddenBiases[j]);
+
+			for (int i = 0; i < inputs; i++) {
+				double weight = hiddenWeights[j * inputs + i];
+				double[] column = batch.getFeature(i);
+
+				for (int k = 0; k < size; k++) {
+					sums[k] += weight * column[k];
+				}
+			}
+
+			for (int k = 0; k < size; k++) {
+				scores[k] += outputWeights[j] * Math.max(0, sums[k]);
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A move evaluator which splits the placements of the current piece across a fork/join pool.
+ * Each worker thread searches the subtree beneath a placement on its own copy of the board with
+ * its own evaluator. The scores are reduced in the same order as the sequential search visits the
+ * placements, so the chosen move is identical to that of {@link MoveEvaluator}.
+ *
+ * @author Eric Fritz
+ */
+public class ParallelMoveEvaluator extends MoveEvaluator
+{
+	private ForkJoinPool pool;
+
+	private ThreadLocal<MoveEvaluator> evaluators = ThreadLocal.withInitial(() -> new MoveEvaluator(getScoring()));
+	private ThreadLocal<Board> boards = new ThreadLocal<>();
+
+	public ParallelMoveEvaluator(ScoringSystem scoring) {
+		this(scoring, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelMoveEvaluator(ScoringSystem scoring, int parallelism) {
+		super(scoring);
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	@Override
+	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, Move result) {
+		PlacementList placements = enumerate(board, current, x1, y1, new PlacementList());
+
+		double[] scores = new double[placements.size()];
+		pool.invoke(new PlacementTask(board, placements, scores, 0, placements.size(), preview, x2, y2));
+
+		// Ties are broken in favor of the earliest placement, exactly as in the sequential search.
+
+		double best = Double.NEGATIVE_INFINITY;
+		result.set(best, 0, 0);
+
+		for (int i = 0; i < scores.length; i++) {
+			if (scores[i] > best) {
+				best = scores[i];
+				result.set(best, placements.getRotation(i), placements.getX(i) - x1);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Scores a single placement on the calling thread's board and evaluator.
+	 */
+	private double evaluate(Board board, Tetromino piece, int x, int y, Tetromino preview, int x2, int y2) {
+		Board copy = board.tryClone(boards.get());
+		boards.set(copy);
+
+		return evaluators.get().evaluatePlacement(copy, piece, x, y, preview, x2, y2, 0, 0);
+	}
+
+	/**
+	 * A task which scores a range of placements, splitting the range in half until a single
+	 * placement remains.
+	 */
+	private class PlacementTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Board board;
+		private PlacementList placements;
+		private double[] scores;
+		private int lo;
+		private int hi;
+		private Tetromino preview;
+		private int x2;
+		private int y2;
+
+		public PlacementTask(Board board, PlacementList placements, double[] scores, int lo, int hi, Tetromino preview, int x2, int y2) {
+			this.board = board;
+			this.placements = placements;
+			this.scores = scores;
+			this.lo = lo;
+			this.hi = hi;
+			this.preview = preview;
+			this.x2 = x2;
+			this.y2 = y2;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo == 1) {
+				scores[lo] = evaluate(board, placements.getPiece(lo), placements.getX(lo), placements.getY(lo), preview, x2, y2);
+			} else if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+
+				invokeAll(
+					new PlacementTask(board, placements, scores, lo, mid, preview, x2, y2),
+					new PlacementTask(board, placements, scores, mid, hi, preview, x2, y2)
+				);
+			}
+		}
+	}
+}
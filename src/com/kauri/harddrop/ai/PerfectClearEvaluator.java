@@ -0,0 +1,456 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A move evaluator which looks for a perfect clear, a run of placements of the known upcoming
+ * pieces which leaves the board empty. If one is found within the time budget, its first
+ * placement is played and the rest are kept for the following pieces; otherwise the move is left
+ * to another evaluator.
+ * <p>
+ * The placements are searched depth first on one copy of the board, each placement being taken
+ * back through the journal of the board. A position is abandoned as soon as the cells left to
+ * fill cannot be filled by the remaining pieces: the empty cells beneath the rows to be cleared
+ * must come to a multiple of four, no block may rise above those rows, and the pieces must be
+ * able to balance the empty cells of the even and of the odd columns. Only a vertical I piece, a
+ * vertical T piece or a J or L piece covers more cells of one kind of column than of the other,
+ * and row clears remove as many of each. Positions from which no perfect clear was found are
+ * remembered, along with the pieces left to place, so that reaching them again is cheap.
+ *
+ * @author Eric Fritz
+ */
+public class PerfectClearEvaluator extends MoveEvaluator
+{
+	private MoveEvaluator fallback;
+
+	private int pieces = 10;
+	private int maxHeight = 4;
+	private long budget = 16;
+	private long nodeBudget = 0;
+
+	/**
+	 * Positions from which no perfect clear was found. Each slot holds the key of a single
+	 * position, so a forgotten position is only searched again.
+	 */
+	private long[] failures = new long[1 << 18];
+
+	private Board copy;
+	private PlacementList[] placements = new PlacementList[0];
+	private Tetromino[] queue = new Tetromino[0];
+	private long[] suffixes = new long[0];
+
+	private long deadline;
+	private long nodes;
+	private boolean aborted;
+
+	/**
+	 * The perfect clear being played. Step <tt>i</tt> places <tt>planPieces[i]</tt> on the board
+	 * with hash <tt>planHashes[i]</tt>.
+	 */
+	private int planLength = 0;
+	private int planIndex = 0;
+	private Tetromino[] planPieces = new Tetromino[0];
+	private long[] planHashes = new long[0];
+	private int[] planRotations = new int[0];
+	private int[] planTranslations = new int[0];
+	private int[] planYs = new int[0];
+
+	private long found = 0;
+
+	/**
+	 * Creates a new PerfectClearEvaluator.
+	 *
+	 * @param fallback The evaluator which decides the move when no perfect clear is found.
+	 */
+	public PerfectClearEvaluator(MoveEvaluator fallback) {
+		super(fallback.getScoring());
+		this.fallback = fallback;
+	}
+
+	public MoveEvaluator getFallback() {
+		return fallback;
+	}
+
+	public int getPieces() {
+		return pieces;
+	}
+
+	/**
+	 * Sets the number of known upcoming pieces, including the current piece, which a perfect
+	 * clear may use.
+	 *
+	 * @param pieces The number of pieces.
+	 */
+	public void setPieces(int pieces) {
+		this.pieces = pieces;
+	}
+
+	public int getMaxHeight() {
+		return maxHeight;
+	}
+
+	/**
+	 * Sets the number of rows which a perfect clear may fill.
+	 *
+	 * @param maxHeight The number of rows.
+	 */
+	public void setMaxHeight(int maxHeight) {
+		this.maxHeight = maxHeight;
+		Arrays.fill(failures, 0);
+	}
+
+	public long getTimeBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the time the search for a perfect clear may take, unless a shorter deadline is set for
+	 * the search.
+	 *
+	 * @param budget The time budget, in milliseconds.
+	 */
+	public void setTimeBudget(long budget) {
+		this.budget = budget;
+	}
+
+	public long getNodeBudget() {
+		return nodeBudget;
+	}
+
+	/**
+	 * Sets the number of placements the search for a perfect clear may make before it gives up.
+	 *
+	 * @param nodeBudget The node budget, or zero for no limit.
+	 */
+	public void setNodeBudget(long nodeBudget) {
+		this.nodeBudget = nodeBudget;
+	}
+
+	/**
+	 * @return The number of placements made by the last search for a perfect clear.
+	 */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return The number of perfect clears found so far.
+	 */
+	public long getFound() {
+		return found;
+	}
+
+	/**
+	 * @return Whether a perfect clear is being played.
+	 */
+	public boolean isPlaying() {
+		return planIndex < planLength;
+	}
+
+	@Override
+	public int getLookahead() {
+		return Math.max(pieces, fallback.getLookahead());
+	}
+
+	@Override
+	public void setDeadline(long deadline) {
+		super.setDeadline(deadline);
+		fallback.setDeadline(deadline);
+	}
+
+	@Override
+	public void setCandidates(List<Tetromino> candidates) {
+		fallback.setCandidates(candidates);
+	}
+
+	@Override
+	public Move getNextMove(Board board, int x, int y, List<Tetromino> pieces, Move result) {
+		long start = System.nanoTime();
+		deadline = Math.min(takeDeadline(start + budget * 1000000), start + budget * 1000000);
+
+		if (follow(board, x, y, pieces) || solve(board, x, y, pieces)) {
+			result.set(Double.POSITIVE_INFINITY, planRotations[planIndex], planTranslations[planIndex]);
+			planIndex++;
+			return result;
+		}
+
+		return fallback.getNextMove(board, x, y, pieces, result);
+	}
+
+	@Override
+	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, Move result) {
+		return fallback.getNextMove(board, current, x1, y1, preview, x2, y2, result);
+	}
+
+	/**
+	 * Determines whether the next step of the perfect clear being played can be played from a
+	 * position. The position must be the one the perfect clear was found to lead to.
+	 */
+	private boolean follow(Board board, int x, int y, List<Tetromino> pieces) {
+		if (planIndex >= planLength || board.getHash() != planHashes[planIndex]) {
+			planLength = 0;
+			return false;
+		}
+
+		Tetromino current = planPieces[planIndex];
+
+		if (x != board.getSpawnX(current) || y != board.getSpawnY(current)) {
+			planLength = 0;
+			return false;
+		}
+
+		for (int i = 0; i < Math.min(pieces.size(), planLength - planIndex); i++) {
+			if (!pieces.get(i).equals(planPieces[planIndex + i])) {
+				planLength = 0;
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Searches for a perfect clear using the upcoming pieces, and keeps it to be played.
+	 */
+	private boolean solve(Board board, int x, int y, List<Tetromino> pieces) {
+		int count = Math.min(pieces.size(), this.pieces);
+
+		int filled = 0;
+		for (int row = 0; row < board.getHeight(); row++) {
+			filled += board.getRowFill(row);
+		}
+
+		planLength = 0;
+		planIndex = 0;
+		nodes = 0;
+		aborted = false;
+
+		if (queue.length < count) {
+			resize(count);
+		}
+
+		// Positions are remembered along with every piece left to place, so that a position is
+		// only known to fail for the same remaining pieces.
+
+		suffixes[count] = count;
+		for (int i = count - 1; i >= 0; i--) {
+			queue[i] = pieces.get(i);
+			suffixes[i] = mix(suffixes[i + 1], queue[i].hashCode());
+		}
+
+		copy = board.tryClone(copy);
+
+		if (!search(copy, 0, count, x, y, filled)) {
+			return false;
+		}
+
+		// The board before each step is found by playing the perfect clear on the copy.
+
+		for (int i = 0; i < planLength; i++) {
+			planPieces[i] = queue[i];
+			planHashes[i] = copy.getHash();
+			copy.placePiece(Tetromino.get(queue[i].getShape(), queue[i].getRotation() + planRotations[i]), (i == 0 ? x : copy.getSpawnX(queue[i])) + planTranslations[i], planYs[i]);
+		}
+
+		found++;
+		return true;
+	}
+
+	private void resize(int count) {
+		queue = new Tetromino[count];
+		suffixes = new long[count + 1];
+		placements = new PlacementList[count];
+
+		for (int i = 0; i < count; i++) {
+			placements[i] = new PlacementList();
+		}
+
+		planPieces = new Tetromino[count];
+		planHashes = new long[count];
+		planRotations = new int[count];
+		planTranslations = new int[count];
+		planYs = new int[count];
+	}
+
+	/**
+	 * Searches for a perfect clear from a position, recording its steps if one is found.
+	 *
+	 * @param board  The board.
+	 * @param index  The index of the piece to place.
+	 * @param count  The number of pieces which may be placed.
+	 * @param x      The x-position of the piece to place.
+	 * @param y      The y-position of the piece to place.
+	 * @param filled The number of blocks on the board.
+	 *
+	 * @return Whether a perfect clear was found.
+	 */
+	private boolean search(Board board, int index, int count, int x, int y, int filled) {
+		int limit = getLimit(board, index, count, filled);
+
+		if (limit == 0) {
+			return false;
+		}
+
+		long key = board.getHash() ^ suffixes[index];
+		int slot = (int) (key ^ (key >>> 32)) & (failures.length - 1);
+
+		if (failures[slot] == (key | 1)) {
+			return false;
+		}
+
+		PlacementList placements = enumerate(board, queue[index], x, y, this.placements[index]);
+		int width = board.getWidth();
+
+		for (int i = 0; i < placements.size(); i++) {
+			Tetromino current = placements.getPiece(i);
+			int target = placements.getY(i);
+
+			// Every block of the piece must lie within the rows to be cleared.
+
+			if (target - current.getMinY() >= limit) {
+				continue;
+			}
+
+			if (++nodes % 256 == 0 && System.nanoTime() > deadline || nodeBudget > 0 && nodes > nodeBudget) {
+				aborted = true;
+				return false;
+			}
+
+			int clears = board.placePiece(current, placements.getX(i), target);
+			boolean solved = false;
+
+			if (filled + 4 - clears * width == 0) {
+				planLength = index + 1;
+				solved = true;
+			} else if (index + 1 < count) {
+				Tetromino next = queue[index + 1];
+				solved = search(board, index + 1, count, board.getSpawnX(next), board.getSpawnY(next), filled + 4 - clears * width);
+			}
+
+			board.undoPiece();
+
+			if (solved) {
+				planRotations[index] = placements.getRotation(i);
+				planTranslations[index] = placements.getX(i) - x;
+				planYs[index] = target;
+				return true;
+			}
+
+			if (aborted) {
+				return false;
+			}
+		}
+
+		failures[slot] = key | 1;
+		return false;
+	}
+
+	/**
+	 * Determines how many rows a perfect clear from a position may fill. A perfect clear which
+	 * places the next <tt>k</tt> pieces fills exactly as many rows as those pieces and the blocks
+	 * on the board cover, all of the blocks on the board must lie within those rows, and the
+	 * pieces must be able to make up the difference between the empty cells of the even columns
+	 * of those rows and those of the odd columns.
+	 *
+	 * @return The largest number of rows, or zero if there can be no perfect clear.
+	 */
+	private int getLimit(Board board, int index, int count, int filled) {
+		int width = board.getWidth();
+		long cols = board.getFullRowMask();
+		long evens = 0x5555555555555555L & cols;
+
+		int top = 0;
+		for (int col = 0; col < width; col++) {
+			top = Math.max(top, board.getColumnHeight(col));
+		}
+
+		int limit = 0;
+		int imbalance = 0;
+		int rows = 0;
+
+		int is = 0;
+		int ts = 0;
+		int ls = 0;
+
+		for (int k = 1; index + k <= count; k++) {
+			switch (queue[index + k - 1].getShape()) {
+				case I:
+					is++;
+					break;
+
+				case T:
+					ts++;
+					break;
+
+				case J:
+				case L:
+					ls++;
+					break;
+
+				default:
+					break;
+			}
+
+			if ((filled + 4 * k) % width != 0) {
+				continue;
+			}
+
+			int height = (filled + 4 * k) / width;
+
+			if (height > maxHeight || height > board.getHeight()) {
+				break;
+			}
+
+			if (height < top) {
+				continue;
+			}
+
+			for (; rows < height; rows++) {
+				long empty = ~board.getRowMask(rows) & cols;
+				imbalance += Long.bitCount(empty & evens) - Long.bitCount(empty & ~evens);
+			}
+
+			// An I piece evens out four cells, and a T, J or L piece two. A J or L piece always
+			// evens out two cells, so without a T piece to make up the difference, their number
+			// fixes whether half of the imbalance is even or odd.
+
+			int half = imbalance / 2;
+
+			if (imbalance % 2 == 0 && Math.abs(half) <= 2 * is + ts + ls && (ts > 0 || Math.floorMod(half - ls, 2) == 0)) {
+				limit = height;
+			}
+		}
+
+		return limit;
+	}
+
+	private static long mix(long key, long value) {
+		long z = (key ^ value) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+
+/**
+ * A list of placements of a piece, filled by {@link MoveEvaluator#enumerate}. The placements are
+ * held in parallel arrays which are reused when the list is filled again, so that a search which
+ * keeps one list per depth does not allocate. Each placement may be given a score, by which the
+ * placements can be ranked.
+ *
+ * @author Eric Fritz
+ */
+public class PlacementList
+{
+	private int size = 0;
+	private Tetromino[] pieces = new Tetromino[64];
+	private int[] rotations = new int[64];
+	private int[] xs = new int[64];
+	private int[] ys = new int[64];
+	private double[] scores = new double[64];
+
+	/**
+	 * Resting positions and placements already listed, used while the list is filled.
+	 */
+	int[] rests = new int[0];
+	PlacementSet seen = new PlacementSet();
+
+	/**
+	 * @return The number of placements.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every placement from the list.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds a placement to the list.
+	 *
+	 * @param piece    The rotated tetromino.
+	 * @param rotation The number of clockwise rotations from the starting orientation.
+	 * @param x        The x-position at which the piece lands.
+	 * @param y        The y-position at which the piece lands.
+	 */
+	public void add(Tetromino piece, int rotation, int x, int y) {
+		if (size == pieces.length) {
+			int capacity = size * 2;
+
+			pieces = Arrays.copyOf(pieces, capacity);
+			rotations = Arrays.copyOf(rotations, capacity);
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			scores = Arrays.copyOf(scores, capacity);
+		}
+
+		pieces[size] = piece;
+		rotations[size] = rotation;
+		xs[size] = x;
+		ys[size] = y;
+		scores[size] = 0;
+		size++;
+	}
+
+	public Tetromino getPiece(int i) {
+		return pieces[i];
+	}
+
+	public int getRotation(int i) {
+		return rotations[i];
+	}
+
+	public int getX(int i) {
+		return xs[i];
+	}
+
+	public int getY(int i) {
+		return ys[i];
+	}
+
+	public double getScore(int i) {
+		return scores[i];
+	}
+
+	public void setScore(int i, double score) {
+		scores[i] = score;
+	}
+
+	/**
+	 * Ranks the placements by descending score. Placements with equal scores keep the order in
+	 * which they were listed.
+	 *
+	 * @param count The largest number of placements to rank.
+	 *
+	 * @return The indices of the best placements, best first.
+	 */
+	public int[] rank(int count) {
+		int[] order = new int[size];
+
+		for (int i = 0; i < size; i++) {
+			int j = i;
+			while (j > 0 && Double.compare(scores[order[j - 1]], scores[i]) < 0) {
+				order[j] = order[j - 1];
+				j--;
+			}
+
+			order[j] = i;
+		}
+
+		return Arrays.copyOf(order, Math.min(count, size));
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+
+/**
+ * A set of placements of a piece, keyed by the cells they occupy once landed. Placements of two
+ * rotations with the same {@link Tetromino#getFootprint footprint} are the same element when they
+ * cover the same cells, so searching only the first such placement avoids scoring the same board
+ * twice.
+ *
+ * @author Eric Fritz
+ */
+public class PlacementSet
+{
+	private long[] bits = new long[0];
+	private int width;
+	private int rows;
+
+	/**
+	 * Removes all placements and sizes the set for a board.
+	 *
+	 * @param board The board.
+	 */
+	public void clear(Board board) {
+		// A landed piece rests on a block or on the floor, so the top of its bounding box lies
+		// within four rows above the top of the board.
+
+		width = board.getWidth();
+		rows = board.getHeight() + 4;
+
+		int words = (Tetromino.ROTATIONS * rows * width + 63) >>> 6;
+
+		if (bits.length < words) {
+			bits = new long[words];
+		} else {
+			Arrays.fill(bits, 0, words, 0);
+		}
+	}
+
+	/**
+	 * Adds a placement to the set.
+	 *
+	 * @param piece The tetromino.
+	 * @param x     The x-position.
+	 * @param y     The y-position.
+	 *
+	 * @return <tt>true</tt> if no placement covering the same cells was in the set.
+	 */
+	public boolean add(Tetromino piece, int x, int y) {
+		int key = (piece.getFootprint() * rows + y - piece.getMinY()) * width + x + piece.getMinX();
+
+		if ((bits[key >>> 6] & (1L << key)) != 0) {
+			return false;
+		}
+
+		bits[key >>> 6] |= 1L << key;
+		return true;
+	}
+}
@@ -0,0 +1,422 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A move evaluator which judges the most promising placements by playing the game forward from
+ * them. The placements of the current piece are ranked by the usual two-piece search, and from
+ * each of the best few, a number of playouts place the preview piece and then a run of random
+ * pieces, each time choosing the placement with the best score on the spot. Each playout is worth
+ * the score of the board it ends on, counting the lines it cleared. The placement whose playouts
+ * most often survive is chosen, and among those, the one whose surviving playouts are worth the
+ * most on average.
+ * <p>
+ * Every placement is played out with the same pieces, which are drawn from a generator seeded by
+ * the board, so placements are compared against the same luck while each decision sees its own
+ * pieces. The playouts are run in parallel, each thread on its own copy of the board, and every
+ * placement of a playout is taken back through the journal of the board instead of copying the
+ * board again. The search stops early once the time budget or the node budget runs out, keeping the
+ * playouts which finished; if none did, the best placement of the two-piece search is used.
+ *
+ * @author Eric Fritz
+ */
+public class RolloutEvaluator extends MoveEvaluator
+{
+	private ForkJoinPool pool;
+
+	private long budget = 100;
+	private long nodeBudget = 0;
+	private int breadth = 4;
+	private int rollouts = 32;
+	private int horizon = 10;
+	private long seed = 0;
+
+	private int played = 0;
+	private AtomicLong nodes = new AtomicLong();
+
+	private ThreadLocal<MoveEvaluator> evaluators = ThreadLocal.withInitial(() -> new MoveEvaluator(getScoring()));
+	private ThreadLocal<Playout> playouts = ThreadLocal.withInitial(Playout::new);
+
+	public RolloutEvaluator(ScoringSystem scoring) {
+		this(scoring, Runtime.getRuntime().availableProcessors());
+	}
+
+	public RolloutEvaluator(ScoringSystem scoring, int parallelism) {
+		super(scoring);
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	public long getTimeBudget() {
+		return budget;
+	}
+
+	/**
+	 * Sets the time a search may take before it stops starting playouts, unless a deadline is set
+	 * for the search.
+	 *
+	 * @param budget The time budget, in milliseconds.
+	 */
+	public void setTimeBudget(long budget) {
+		this.budget = budget;
+	}
+
+	public long getNodeBudget() {
+		return nodeBudget;
+	}
+
+	/**
+	 * Sets the number of pieces a search may place in its playouts before it stops starting new
+	 * ones.
+	 *
+	 * @param nodeBudget The node budget, or zero for no limit.
+	 */
+	public void setNodeBudget(long nodeBudget) {
+		this.nodeBudget = nodeBudget;
+	}
+
+	public int getBreadth() {
+		return breadth;
+	}
+
+	/**
+	 * Sets the number of placements of the current piece which are played out.
+	 *
+	 * @param breadth The number of placements.
+	 */
+	public void setBreadth(int breadth) {
+		this.breadth = breadth;
+	}
+
+	public int getRollouts() {
+		return rollouts;
+	}
+
+	/**
+	 * Sets the number of playouts from each placement of the current piece.
+	 *
+	 * @param rollouts The number of playouts.
+	 */
+	public void setRollouts(int rollouts) {
+		this.rollouts = rollouts;
+	}
+
+	public int getHorizon() {
+		return horizon;
+	}
+
+	/**
+	 * Sets the number of random pieces placed by each playout after the preview piece.
+	 *
+	 * @param horizon The number of pieces.
+	 */
+	public void setHorizon(int horizon) {
+		this.horizon = horizon;
+	}
+
+	/**
+	 * Sets the seed which is mixed with the board to draw the pieces of every playout. Searches
+	 * from the same position with the same seed play out the same pieces.
+	 *
+	 * @param seed The seed.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @return The number of playouts finished by the last search, over every placement.
+	 */
+	public int getPlayed() {
+		return played;
+	}
+
+	/**
+	 * @return The number of pieces placed by the playouts of the last search.
+	 */
+	public long getNodes() {
+		return nodes.get();
+	}
+
+	@Override
+	public Move getNextMove(Board board, Tetromino current, int x1, int y1, Tetromino preview, int x2, int y2, Move result) {
+		if (preview == null) {
+			return super.getNextMove(board, current, x1, y1, preview, x2, y2, result);
+		}
+
+		long deadline = takeDeadline(System.nanoTime() + budget * 1000000);
+
+		// The piece after the preview is drawn from the candidates given for it, if any, and every
+		// later piece from all of the tetrominoes.
+
+		List<Tetromino> candidates = takeCandidates();
+
+		if (candidates == null || candidates.isEmpty()) {
+			candidates = Arrays.asList(Tetromino.tetrominoes);
+		}
+
+		// Rank the placements of the current piece by the two-piece search.
+
+		Board copy = board.tryClone(null);
+		PlacementList placements = new PlacementList();
+
+		if (copy.canMove(current, x1, y1)) {
+			enumerate(copy, current, x1, y1, placements);
+		}
+
+		for (int i = 0; i < placements.size(); i++) {
+			placements.setScore(i, evaluators.get().evaluatePlacement(copy, placements.getPiece(i), placements.getX(i), placements.getY(i), preview, x2, y2, 0, 0));
+		}
+
+		int[] ranked = placements.rank(breadth);
+
+		double[][] values = new double[ranked.length][rollouts];
+
+		for (double[] row : values) {
+			Arrays.fill(row, Double.NaN);
+		}
+
+		nodes.set(0);
+		pool.invoke(new PlayoutTask(board, placements, ranked, preview, candidates, values, 0, rollouts, deadline));
+
+		// The ranking breaks ties in favor of the earliest placement, and so does this.
+
+		int best = ranked.length == 0 ? -1 : ranked[0];
+		double score = best < 0 ? Double.NEGATIVE_INFINITY : placements.getScore(best);
+		boolean found = false;
+		played = 0;
+
+		double survival = 0;
+
+		for (int i = 0; i < values.length; i++) {
+			double sum = 0;
+			int count = 0;
+			int survived = 0;
+
+			for (double value : values[i]) {
+				if (!Double.isNaN(value)) {
+					count++;
+
+					if (value != Double.NEGATIVE_INFINITY) {
+						sum += value;
+						survived++;
+					}
+				}
+			}
+
+			played += count;
+
+			if (count == 0) {
+				continue;
+			}
+
+			double rate = survived / (double) count;
+			double mean = survived == 0 ? Double.NEGATIVE_INFINITY : sum / survived;
+
+			if (!found || rate > survival || rate == survival && mean > score) {
+				best = ranked[i];
+				survival = rate;
+				score = mean;
+				found = true;
+			}
+		}
+
+		if (best < 0) {
+			result.set(score, 0, 0);
+		} else {
+			result.set(score, placements.getRotation(best), placements.getX(best) - x1);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Plays out a range of playouts from every ranked placement, on the calling thread's copy of
+	 * the board. Each playout is played from every placement before the next one is started, so
+	 * that the placements are compared over the same playouts when the budget runs out.
+	 */
+	private void play(Board board, PlacementList placements, int[] ranked, Tetromino preview, List<Tetromino> candidates, double[][] values, int lo, int hi, long deadline) {
+		Playout playout = playouts.get();
+		playout.board = board.tryClone(playout.board);
+
+		long base = (seed * 31 + board.getHash()) * 31;
+
+		for (int r = lo; r < hi; r++) {
+			for (int i = 0; i < ranked.length; i++) {
+				if (System.nanoTime() > deadline || nodeBudget > 0 && nodes.get() >= nodeBudget) {
+					return;
+				}
+
+				// The pieces of a playout depend only on the board and its index, so every placement
+				// sees them, but the next decision does not.
+
+				playout.random.setSeed(base + r);
+				values[i][r] = playout.run(placements.getPiece(ranked[i]), placements.getX(ranked[i]), placements.getY(ranked[i]), preview, candidates);
+			}
+		}
+	}
+
+	/**
+	 * The state of the playouts of a single thread.
+	 */
+	private class Playout
+	{
+		public Board board;
+		public Random random = new Random();
+
+		private PlacementList placements = new PlacementList();
+
+		private Tetromino bestPiece;
+		private int bestX;
+		private int bestY;
+
+		/**
+		 * Plays out the game from a placement of the current piece and leaves the board as it was.
+		 *
+		 * @return The score of the board at the end of the playout, or negative infinity if a
+		 *         piece could not enter the board.
+		 */
+		public double run(Tetromino current, int x, int y, Tetromino preview, List<Tetromino> candidates) {
+			int start = board.getJournalSize();
+			int lines = board.placePiece(current, x, y);
+			boolean survived = true;
+
+			for (int i = 0; i <= horizon; i++) {
+				Tetromino piece;
+
+				if (i == 0) {
+					piece = preview;
+				} else if (i == 1) {
+					piece = candidates.get(random.nextInt(candidates.size()));
+				} else {
+					piece = Tetromino.tetrominoes[random.nextInt(Tetromino.tetrominoes.length)];
+				}
+
+				if (!choose(piece)) {
+					survived = false;
+					break;
+				}
+
+				lines += board.placePiece(bestPiece, bestX, bestY);
+				nodes.incrementAndGet();
+			}
+
+			double score = survived ? getScoring().score(board, lines) : Double.NEGATIVE_INFINITY;
+
+			while (board.getJournalSize() > start) {
+				board.undoPiece();
+			}
+
+			return score;
+		}
+
+		/**
+		 * Finds the placement of a piece which leaves the board with the best score.
+		 *
+		 * @return Whether the piece could enter the board.
+		 */
+		private boolean choose(Tetromino piece) {
+			int x = board.getSpawnX(piece);
+			int y = board.getSpawnY(piece);
+
+			if (!board.canMove(piece, x, y)) {
+				return false;
+			}
+
+			ScoringSystem scoring = getScoring();
+			scoring.prepare(board);
+			enumerate(board, piece, x, y, placements);
+
+			double best = Double.NEGATIVE_INFINITY;
+
+			for (int i = 0; i < placements.size(); i++) {
+				Tetromino current = placements.getPiece(i);
+
+				board.addPiece(current, placements.getX(i), placements.getY(i));
+				double score = scoring.score(board, 0, current, placements.getX(i), placements.getY(i));
+				board.removePiece(current, placements.getX(i), placements.getY(i));
+
+				if (score > best) {
+					best = score;
+					bestPiece = current;
+					bestX = placements.getX(i);
+					bestY = placements.getY(i);
+				}
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * A task which plays a range of playouts, splitting the range in half until there is a range
+	 * for each thread. Each range copies the board once.
+	 */
+	private class PlayoutTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Board board;
+		private PlacementList placements;
+		private int[] ranked;
+		private Tetromino preview;
+		private List<Tetromino> candidates;
+		private double[][] values;
+		private int lo;
+		private int hi;
+		private long deadline;
+
+		public PlayoutTask(Board board, PlacementList placements, int[] ranked, Tetromino preview, List<Tetromino> candidates, double[][] values, int lo, int hi, long deadline) {
+			this.board = board;
+			this.placements = placements;
+			this.ranked = ranked;
+			this.preview = preview;
+			this.candidates = candidates;
+			this.values = values;
+			this.lo = lo;
+			this.hi = hi;
+			this.deadline = deadline;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= Math.max(1, rollouts / pool.getParallelism())) {
+				play(board, placements, ranked, preview, candidates, values, lo, hi, deadline);
+			} else {
+				int mid = (lo + hi) >>> 1;
+
+				invokeAll(
+					new PlayoutTask(board, placements, ranked, preview, candidates, values, lo, mid, deadline),
+					new PlayoutTask(board, placements, ranked, preview, candidates, values, mid, hi, deadline)
+				);
+			}
+		}
+	}
+}
@@ -22,7 +22,8 @@
 package com.kauri.harddrop.ai;
 
 import com.kauri.harddrop.Board;
-import com.kauri.harddrop.Shape;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
 
 /**
  * @author Eric Fritz
@@ -30,6 +31,11 @@ import com.kauri.harddrop.Shape;
 public class ScoringSystem
 {
 	private Weights weights;
+	private Network network;
+
+	private ThreadLocal<FeatureExtractor> extractors = ThreadLocal.withInitial(FeatureExtractor::new);
+	private ThreadLocal<double[]> inputs = ThreadLocal.withInitial(() -> new double[0]);
+	private ThreadLocal<BoundScratch> bounds = ThreadLocal.withInitial(BoundScratch::new);
 
 	public Weights getWeights() {
 		return weights;
@@ -39,101 +45,371 @@ public class ScoringSystem
 		this.weights = weights;
 	}
 
+	public Network getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Sets a network which scores boards instead of the weighted features. Boards which are not as
+	 * wide as the network are still scored by the weighted features.
+	 *
+	 * @param network The network, or <tt>null</tt> to score every board by the weighted features.
+	 */
+	public void setNetwork(Network network) {
+		this.network = network;
+	}
+
 	public double score(Board board) {
-		//
-		// TODO - modify line clears so that the board is not modified.
-		//
+		return score(board, 0);
+	}
 
-		int clears = 0;
-		for (int row = board.getHeight() - 1; row >= 0; row--) {
-			board = board.tryClone(null);
+	/**
+	 * Scores a board which was reached by clearing a number of rows.
+	 *
+	 * @param board   The board.
+	 * @param cleared The number of rows already cleared on the way to this board.
+	 *
+	 * @return The score of the board.
+	 */
+	public double score(Board board, int cleared) {
+		return score(board, cleared, null, 0, 0);
+	}
 
-			if (board.isRowFull(row)) {
-				clears++;
-				board.removeRow(row);
-			}
+	/**
+	 * Prepares to score a board with each of a number of single pieces added to it, so that only
+	 * the columns and rows touched by each piece have to be scored again. Boards which differ from
+	 * the prepared board by anything but a single added piece are scored in full.
+	 *
+	 * @param board The board.
+	 */
+	public void prepare(Board board) {
+		extractors.get().prepare(board);
+	}
+
+	/**
+	 * Scores a board on which a piece was just placed. The features which depend on the placement
+	 * are zero if the piece is not known.
+	 *
+	 * @param board   The board.
+	 * @param cleared The number of rows already cleared on the way to this board.
+	 * @param piece   The piece placed last, or <tt>null</tt>.
+	 * @param x       The x-position of the piece.
+	 * @param y       The y-position of the piece.
+	 *
+	 * @return The score of the board.
+	 */
+	public double score(Board board, int cleared, Tetromino piece, int x, int y) {
+		Network network = getNetwork(board);
+
+		if (network != null) {
+			return network.evaluate(encode(network, board, cleared));
+		}
+
+		double[] features = extractors.get().extract(board, cleared, piece, x, y);
+		double[] weights = this.weights.getWeights();
+
+		// Weights evolved before a feature existed leave that feature out.
+
+		double score = 0;
+		for (int i = 0; i < Math.min(weights.length, FeatureExtractor.FEATURES); i++) {
+			score += weights[i] * features[i];
 		}
 
-		int[] heights = getHeights(board);
+		return score;
+	}
 
-		int sumHeight = 0;
-		int minHeight = heights[0];
-		int maxHeight = heights[0];
+	/**
+	 * Adds the features of a board on which a piece was just placed to a batch, to be scored along
+	 * with the rest of the batch.
+	 *
+	 * @param batch   The batch.
+	 * @param board   The board.
+	 * @param cleared The number of rows already cleared on the way to this board.
+	 * @param piece   The piece placed last, or <tt>null</tt>.
+	 * @param x       The x-position of the piece.
+	 * @param y       The y-position of the piece.
+	 *
+	 * @return The index of the board in the batch.
+	 */
+	public int add(CandidateBatch batch, Board board, int cleared, Tetromino piece, int x, int y) {
+		// The first board decides how the whole batch is scored, so that a network set while the
+		// batch is filled does not mix network inputs with features.
 
-		int holes = 0;
-		int wells = 0;
-		int blockades = 0;
+		if (batch.size() == 0) {
+			batch.setNetwork(getNetwork(board));
+		}
 
-		for (int col = 0; col < heights.length; col++) {
-			sumHeight = sumHeight + heights[col];
-			minHeight = Math.min(heights[col], minHeight);
-			maxHeight = Math.max(heights[col], maxHeight);
+		Network network = batch.getNetwork();
 
-			// To count the number of holes, count the empty blocks from the bottom to the top
-			// of the column. To count the number of blockades, count the non-empty blocks from
-			// first hole to the top of the column.
+		if (network != null) {
+			return batch.add(encode(network, board, cleared));
+		}
 
-			int h = 0;
-			for (int i = 0; i <= heights[col]; i++) {
-				if (board.getShapeAt(i, col) == Shape.NoShape) {
-					h++;
-				} else if (h > 0) {
-					blockades++;
-				}
-			}
+		return batch.add(extractors.get().extract(board, cleared, piece, x, y));
+	}
 
-			holes += h;
+	/**
+	 * Scores every board of a batch. Each score is exactly the score of the board scored alone.
+	 *
+	 * @param batch  The batch.
+	 * @param scores The array to fill with the score of each board, which must have room for
+	 *               every board of the batch.
+	 */
+	public void score(CandidateBatch batch, double[] scores) {
+		if (batch.getNetwork() != null) {
+			batch.getNetwork().evaluate(batch, scores);
+		} else {
+			score(batch, weights.getWeights(), scores);
+		}
+	}
 
-			// A well exists if a column's height is at least minWellDepth less than the columns
-			// surrounding it. We compare each column's height with that of both its neighbors. The
-			// side columns will only be compared with only one neighbor, as we consider the borders
-			// of the board itself as infinite-height columns.
+	/**
+	 * Weights the features of every candidate of a batch. The features are visited one at a time
+	 * across all of the candidates, which the compiler can turn into SIMD instructions, but each
+	 * score still adds its weighted features in their own order, so that it is exactly the score
+	 * of the candidate scored alone. Features beyond the last weight are left out.
+	 */
+	private static void score(CandidateBatch batch, double[] weights, double[] scores) {
+		int size = batch.size();
 
-			int l = heights.length - 1;
-			int h1 = col == 0 ? Integer.MAX_VALUE : heights[col - 1];
-			int h2 = col == l ? Integer.MAX_VALUE : heights[col + 1];
+		Arrays.fill(scores, 0, size, 0);
 
-			if (heights[col] < h1 && heights[col] < h2) {
-				int depth = Math.min(h1, h2) - heights[col];
+		for (int j = 0; j < Math.min(weights.length, FeatureExtractor.FEATURES); j++) {
+			double weight = weights[j];
+			double[] feature = batch.getFeature(j);
 
-				if (depth >= 3) {
-					wells += depth;
-				}
+			for (int i = 0; i < size; i++) {
+				scores[i] += weight * feature[i];
 			}
 		}
+	}
 
-		double score = 0;
-		score += weights.getWeights()[0] * sumHeight;
-		score += weights.getWeights()[1] * maxHeight;
-		score += weights.getWeights()[2] * (maxHeight - minHeight);
-		score += weights.getWeights()[3] * (sumHeight / (double) heights.length);
-		score += weights.getWeights()[4] * holes;
-		score += weights.getWeights()[5] * wells;
-		score += weights.getWeights()[6] * blockades;
-		score += weights.getWeights()[7] * clears;
+	/**
+	 * @return The network which scores a board, or <tt>null</tt> if it is scored by the weighted
+	 *         features.
+	 */
+	private Network getNetwork(Board board) {
+		Network network = this.network;
+		return network != null && network.getWidth() == board.getWidth() ? network : null;
+	}
 
-		return score;
+	/**
+	 * Computes the inputs of a network for a board into the calling thread's array.
+	 */
+	private double[] encode(Network network, Board board, int cleared) {
+		if (inputs.get().length != network.getInputs()) {
+			inputs.set(new double[network.getInputs()]);
+		}
+
+		return network.encode(board, cleared, inputs.get());
+	}
+
+	/**
+	 * @return Whether the score of a board depends on the placement of the last piece, and not on
+	 *         the board alone.
+	 */
+	public boolean isPlacementDependent() {
+		return getWeight(FeatureExtractor.ERODED_CELLS) != 0 || getWeight(FeatureExtractor.LANDING_HEIGHT) != 0;
+	}
+
+	private double getWeight(int feature) {
+		return feature < weights.getWeights().length ? weights.getWeights()[feature] : 0;
 	}
 
 	/**
-	 * Retrieves an array of each column's height.
+	 * Bounds the score of every board which can be reached by adding one more piece to a board and
+	 * virtually clearing the rows it completes. Each feature is bounded on its own, from whichever
+	 * side raises the score under the current weights, so the bound is never below the score of
+	 * any such board.
 	 *
-	 * @param board The board.
+	 * @param board   The board, which must not have any full rows.
+	 * @param cleared The number of rows already cleared on the way to this board.
+	 * @param tucks   Whether the piece may be placed beneath an overhang. Otherwise, the piece is
+	 *                assumed to come to rest above every block of the columns it covers.
 	 *
-	 * @return An array of heights.
+	 * @return An upper bound on the score, which is infinite if any feature beyond the original
+	 *         eight is weighted or the board is scored by a network.
 	 */
-	private int[] getHeights(Board board) {
-		int[] heights = new int[board.getWidth()];
+	public double getUpperBound(Board board, int cleared, boolean tucks) {
+		if (getNetwork(board) != null) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		// Only the original features are bounded.
+
+		for (int i = FeatureExtractor.CLEARS + 1; i < weights.getWeights().length; i++) {
+			if (weights.getWeights()[i] != 0) {
+				return Double.POSITIVE_INFINITY;
+			}
+		}
+
+		int width = board.getWidth();
+		int height = board.getHeight();
+
+		BoundScratch scratch = bounds.get();
+
+		if (scratch.heights.length < width) {
+			scratch.heights = new int[width];
+			scratch.lows = new int[width];
+			scratch.highs = new int[width];
+		}
+
+		int[] deficits = scratch.deficits;
+		int[] heights = scratch.heights;
+		int[] lows = scratch.lows;
+		int[] highs = scratch.highs;
+
+		// A piece has four blocks, so the rows it completes can be missing at most four blocks
+		// between them. Rows missing the fewest blocks are completed first.
+
+		Arrays.fill(deficits, 0);
+		for (int row = 0; row < height; row++) {
+			int deficit = width - board.getRowFill(row);
 
-		for (int col = 0; col < board.getWidth(); col++) {
+			if (deficit <= 4) {
+				deficits[deficit]++;
+			}
+		}
+
+		int clears = 0;
+		int blocks = 4;
+
+		for (int deficit = 1; deficit <= 4; deficit++) {
+			int rows = Math.min(deficits[deficit], blocks / deficit);
+			clears += rows;
+			blocks -= rows * deficit;
+		}
+
+		for (int col = 0; col < width; col++) {
 			heights[col] = getColumnHeight(board, col);
 		}
 
-		return heights;
+		int sumLow = 0;
+		int sumHigh = 0;
+		int holesLow = 0;
+		int holesHigh = 0;
+		int blockadesLow = 0;
+		int blockadesHigh = 4;
+
+		for (int col = 0; col < width; col++) {
+			// Blocks in rows which cannot be cleared stay on the board, so the holes beneath the
+			// highest such block stay covered, and so do the blocks above the lowest of them. A
+			// tucked piece can fill up to four of those holes instead.
+
+			int fixed = -1;
+			for (int row = heights[col] - 1; row >= 0 && fixed < 0; row--) {
+				if (board.isOccupied(row, col) && (clears == 0 || width - board.getRowFill(row) > 4)) {
+					fixed = row;
+				}
+			}
+
+			// A column only loses height to cleared rows, but can drop all the way down to its
+			// highest fixed block. The piece comes to rest on a column it covers, so it cannot
+			// raise a column above four rows over its neighbors within the width of a piece.
+
+			int high = 0;
+			for (int i = Math.max(0, col - 3); i <= Math.min(width - 1, col + 3); i++) {
+				high = Math.max(high, heights[i] + 4);
+			}
+
+			lows[col] = Math.max(0, fixed + 1 - clears);
+			highs[col] = high;
+
+			sumLow += lows[col];
+			sumHigh += highs[col];
+
+			int buried = 0;
+			int covered = 0;
+			int blockades = 0;
+			int fixedBlockades = 0;
+
+			for (int row = 0; row < heights[col]; row++) {
+				if (!board.isOccupied(row, col)) {
+					buried++;
+
+					if (row < fixed) {
+						covered++;
+					}
+				} else {
+					if (buried > 0) {
+						blockades++;
+					}
+
+					if (covered > (tucks ? 4 : 0) && (clears == 0 || width - board.getRowFill(row) > 4)) {
+						fixedBlockades++;
+					}
+				}
+			}
+
+			holesLow += covered + 1;
+			holesHigh += buried + 1 + highs[col] - heights[col];
+			blockadesLow += fixedBlockades;
+			blockadesHigh += blockades;
+		}
+
+		if (tucks) {
+			holesLow = Math.max(width, holesLow - 4);
+		}
+
+		int maxLow = Integer.MIN_VALUE;
+		int maxHigh = Integer.MIN_VALUE;
+		int minLow = Integer.MAX_VALUE;
+		int minHigh = Integer.MAX_VALUE;
+
+		for (int col = 0; col < width; col++) {
+			maxLow = Math.max(maxLow, lows[col]);
+			maxHigh = Math.max(maxHigh, highs[col]);
+			minLow = Math.min(minLow, lows[col]);
+			minHigh = Math.min(minHigh, highs[col]);
+		}
+
+		// Each well is bounded by the deepest and the shallowest well the column and its neighbors
+		// can form between their own bounds.
+
+		int wellsLow = 0;
+		int wellsHigh = 0;
+
+		for (int col = 0; col < width; col++) {
+			int prevLow = col == 0 ? Integer.MAX_VALUE : lows[col - 1];
+			int prevHigh = col == 0 ? Integer.MAX_VALUE : highs[col - 1];
+			int nextLow = col == width - 1 ? Integer.MAX_VALUE : lows[col + 1];
+			int nextHigh = col == width - 1 ? Integer.MAX_VALUE : highs[col + 1];
+
+			if (lows[col] < prevHigh && lows[col] < nextHigh && Math.min(prevHigh, nextHigh) - lows[col] >= 3) {
+				wellsHigh += Math.min(prevHigh, nextHigh) - lows[col];
+			}
+
+			if (highs[col] < prevLow && highs[col] < nextLow && Math.min(prevLow, nextLow) - highs[col] >= 3) {
+				wellsLow += Math.min(prevLow, nextLow) - highs[col];
+			}
+		}
+
+		// The terms are summed in the same order as the score, so that rounding cannot lift the
+		// score above the bound.
+
+		double bound = 0;
+		bound += bound(weights.getWeights()[0], sumLow, sumHigh);
+		bound += bound(weights.getWeights()[1], maxLow, maxHigh);
+		bound += bound(weights.getWeights()[2], Math.max(0, maxLow - minHigh), maxHigh - minLow);
+		bound += bound(weights.getWeights()[3], sumLow / (double) width, sumHigh / (double) width);
+		bound += bound(weights.getWeights()[4], holesLow, holesHigh);
+		bound += bound(weights.getWeights()[5], wellsLow, wellsHigh);
+		bound += bound(weights.getWeights()[6], blockadesLow, blockadesHigh);
+		bound += bound(weights.getWeights()[7], cleared, cleared + clears);
+
+		return bound;
 	}
 
 	/**
-	 * Gets the row index of the tallest block in a column.
+	 * @return The largest weighted value of a feature between its bounds.
+	 */
+	private static double bound(double weight, double low, double high) {
+		return weight >= 0 ? weight * high : weight * low;
+	}
+
+	/**
+	 * Gets the row index of the tallest block in a column, measured the way the features measure
+	 * it on a board without full rows: a block in the top row does not count.
 	 *
 	 * @param board The board.
 	 * @param col   The column index.
@@ -141,12 +417,24 @@ public class ScoringSystem
 	 * @return The height of the column.
 	 */
 	private int getColumnHeight(Board board, int col) {
-		int height = board.getHeight() - 1;
+		int height = Math.min(board.getColumnHeight(col), board.getHeight() - 1);
 
-		while (height > 0 && board.getShapeAt(height - 1, col) == Shape.NoShape) {
+		while (height > 0 && !board.isOccupied(height - 1, col)) {
 			height--;
 		}
 
 		return height;
 	}
+
+	/**
+	 * Arrays used while bounding a score, kept so that bounding does not allocate. They are grown
+	 * to the width of the widest board bounded on the thread.
+	 */
+	private static class BoundScratch
+	{
+		private int[] deficits = new int[5];
+		private int[] heights = new int[0];
+		private int[] lows = new int[0];
+		private int[] highs = new int[0];
+	}
 }
@@ -0,0 +1,209 @@
+/*
+ * This file is part of the tetris package.
+ *
+ * Copyright (c) 2014 Eric Fritz
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.kauri.harddrop.ai;
+
+import com.kauri.harddrop.Board;
+import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+
+/**
+ * A fixed-size transposition table which caches the results of searched positions, keyed by the
+ * Zobrist hash of the board along with the piece being placed.
+ * <p>
+ * Each slot holds a single entry. A new entry replaces an existing one if the existing entry was
+ * stored during an earlier search, or if the new entry was searched at least as deeply.
+ * <p>
+ * Scores are only valid for the scoring system which produced them, so the table empties itself
+ * when a search starts under different weights or a different network than the previous one.
+ *
+ * @author Eric Fritz
+ */
+public class TranspositionTable
+{
+	private int mask;
+	private int generation = 0;
+
+	private Weights weights;
+	private Network network;
+
+	private long[] keys;
+	private double[] scores;
+	private int[] moves;
+	private int[] depths;
+	private int[] generations;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long stores = 0;
+	private long rejections = 0;
+
+	/**
+	 * Creates a new TranspositionTable.
+	 *
+	 * @param bits The base-2 logarithm of the number of slots.
+	 */
+	public TranspositionTable(int bits) {
+		this.mask = (1 << bits) - 1;
+
+		keys = new long[1 << bits];
+		scores = new double[1 << bits];
+		moves = new int[1 << bits];
+		depths = new int[1 << bits];
+		generations = new int[1 << bits];
+
+		clear();
+	}
+
+	/**
+	 * Removes all entries and resets the counters.
+	 */
+	public void clear() {
+		Arrays.fill(generations, -1);
+
+		hits = 0;
+		misses = 0;
+		stores = 0;
+		rejections = 0;
+	}
+
+	/**
+	 * Marks the start of a new search. Entries from earlier searches remain readable, but are
+	 * always replaced by newer entries, unless the scoring system has changed since the previous
+	 * search, in which case all entries are removed.
+	 *
+	 * @param scoring The scoring system of the new search.
+	 */
+	public void nextGeneration(ScoringSystem scoring) {
+		if (scoring.getWeights() != weights || scoring.getNetwork() != network) {
+			weights = scoring.getWeights();
+			network = scoring.getNetwork();
+			clear();
+		}
+
+		generation++;
+	}
+
+	/**
+	 * Computes the key of a position.
+	 *
+	 * @param board The board.
+	 * @param piece The piece to place, or <tt>null</tt> if the board itself is being scored.
+	 * @param x     The x-position of the piece.
+	 * @param y     The y-position of the piece.
+	 * @param extra Any additional state that the result depends on.
+	 *
+	 * @return The key.
+	 */
+	public long getKey(Board board, Tetromino piece, int x, int y, int extra) {
+		return board.getHash() ^ mix(piece == null ? 0 : piece.hashCode() + 1, x, y, extra);
+	}
+
+	/**
+	 * Looks up the slot of an entry.
+	 *
+	 * @param key The key.
+	 *
+	 * @return The slot index, or <tt>-1</tt> if the key is not stored.
+	 */
+	public int probe(long key) {
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+
+		if (generations[slot] >= 0 && keys[slot] == key) {
+			hits++;
+			return slot;
+		}
+
+		misses++;
+		return -1;
+	}
+
+	public double getScore(int slot) {
+		return scores[slot];
+	}
+
+	public int getRotation(int slot) {
+		return moves[slot] >> 16;
+	}
+
+	public int getTranslation(int slot) {
+		return (short) moves[slot];
+	}
+
+	/**
+	 * Stores an entry, subject to the replacement policy.
+	 *
+	 * @param key         The key.
+	 * @param score       The score.
+	 * @param rotation    The rotation of the best move.
+	 * @param translation The translation of the best move.
+	 * @param depth       The number of plies searched beneath the position.
+	 */
+	public void store(long key, double score, int rotation, int translation, int depth) {
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+
+		if (generations[slot] == generation && keys[slot] != key && depths[slot] > depth) {
+			rejections++;
+			return;
+		}
+
+		keys[slot] = key;
+		scores[slot] = score;
+		moves[slot] = (rotation << 16) | (translation & 0xFFFF);
+		depths[slot] = depth;
+		generations[slot] = generation;
+
+		stores++;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getStores() {
+		return stores;
+	}
+
+	public long getRejections() {
+		return rejections;
+	}
+
+	@Override
+	public String toString() {
+		long probes = hits + misses;
+		return String.format("hits = %d, misses = %d, hit rate = %.1f%%, stores = %d, rejections = %d", hits, misses, probes == 0 ? 0 : 100.0 * hits / probes, stores, rejections);
+	}
+
+	/**
+	 * Mixes the parts of a key which do not come from the board.
+	 */
+	static long mix(int piece, int x, int y, int extra) {
+		long z = ((long) piece << 48) ^ ((long) (x & 0xFFFF) << 32) ^ ((long) (y & 0xFFFF) << 16) ^ (extra & 0xFFFF);
+		z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+		z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+
+		return z ^ (z >>> 33);
+	}
+}
@@ -46,4 +46,22 @@ abstract public class MovementCommand implements Command
 
 		return false;
 	}
+
+	/**
+	 * Moves the current piece to a rotation of itself. If the rotated piece does not fit, it is
+	 * kicked by each of its kick offsets in turn until it does.
+	 *
+	 * @param piece The rotated piece.
+	 *
+	 * @return <tt>true</tt> if the piece was rotated, <tt>false</tt> otherwise.
+	 */
+	public boolean tryRotate(Tetromino piece) {
+		for (int i = 0; i < piece.getKickCount(); i++) {
+			if (tryMove(piece, context.getX() + piece.getKickX(i), context.getY() + piece.getKickY(i))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
 }
@@ -30,6 +30,9 @@ import com.kauri.harddrop.Tetromino;
 public class RotateClockwiseCommand extends MovementCommand
 {
 	private GameContext context;
+	private Tetromino piece;
+	private int x;
+	private int y;
 	private boolean success = false;
 
 	public RotateClockwiseCommand(GameContext context) {
@@ -39,13 +42,17 @@ public class RotateClockwiseCommand extends MovementCommand
 
 	@Override
 	public void execute() {
-		success = tryMove(Tetromino.rotateClockwise(context.getCurrent()), context.getX(), context.getY());
+		piece = context.getCurrent();
+		x = context.getX();
+		y = context.getY();
+
+		success = tryRotate(Tetromino.rotateClockwise(piece));
 	}
 
 	@Override
 	public void unexecute() {
 		if (success) {
-			tryMove(Tetromino.rotateCounterClockwise(context.getCurrent()), context.getX(), context.getY());
+			tryMove(piece, x, y);
 		}
 	}
 }
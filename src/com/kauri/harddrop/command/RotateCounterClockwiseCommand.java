@@ -30,6 +30,9 @@ import com.kauri.harddrop.Tetromino;
 public class RotateCounterClockwiseCommand extends MovementCommand
 {
 	private GameContext context;
+	private Tetromino piece;
+	private int x;
+	private int y;
 	private boolean success = false;
 
 	public RotateCounterClockwiseCommand(GameContext context) {
@@ -39,13 +42,17 @@ public class RotateCounterClockwiseCommand extends MovementCommand
 
 	@Override
 	public void execute() {
-		success = tryMove(Tetromino.rotateCounterClockwise(context.getCurrent()), context.getX(), context.getY());
+		piece = context.getCurrent();
+		x = context.getX();
+		y = context.getY();
+
+		success = tryRotate(Tetromino.rotateCounterClockwise(piece));
 	}
 
 	@Override
 	public void unexecute() {
 		if (success) {
-			tryMove(Tetromino.rotateClockwise(context.getCurrent()), context.getX(), context.getY());
+			tryMove(piece, x, y);
 		}
 	}
 }
@@ -23,6 +23,8 @@ package com.kauri.harddrop.sequence;
 
 import com.kauri.harddrop.Shape;
 import com.kauri.harddrop.Tetromino;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Eric Fritz
@@ -31,6 +33,11 @@ public class LinePieceSelector implements PieceSelector
 {
 	@Override
 	public Tetromino getNextPiece() {
-		return Tetromino.tetrominoes.get(Shape.I);
+		return Tetromino.get(Shape.I);
+	}
+
+	@Override
+	public List<Tetromino> getCandidates() {
+		return Collections.singletonList(Tetromino.get(Shape.I));
 	}
 }
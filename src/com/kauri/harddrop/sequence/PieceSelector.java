@@ -22,6 +22,8 @@
 package com.kauri.harddrop.sequence;
 
 import com.kauri.harddrop.Tetromino;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Eric Fritz
@@ -29,4 +31,26 @@ import com.kauri.harddrop.Tetromino;
 public interface PieceSelector
 {
 	abstract Tetromino getNextPiece();
+
+	/**
+	 * Determines which pieces may be returned by the next call to {@link #getNextPiece}, assuming
+	 * each listed piece is equally likely. A piece listed more than once is proportionally more
+	 * likely. By default, every tetromino may be returned.
+	 *
+	 * @return The candidate pieces.
+	 */
+	default List<Tetromino> getCandidates() {
+		return Arrays.asList(Tetromino.tetrominoes);
+	}
+
+	/**
+	 * Determines whether pieces may be drawn before the pieces ahead of them have been placed. A
+	 * selector which chooses pieces from the state of the game would choose differently if asked
+	 * early. By default, pieces may be drawn ahead.
+	 *
+	 * @return <tt>true</tt> if drawing ahead does not change which pieces are drawn.
+	 */
+	default boolean canDrawAhead() {
+		return true;
+	}
 }
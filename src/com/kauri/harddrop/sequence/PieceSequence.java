@@ -23,6 +23,7 @@ package com.kauri.harddrop.sequence;
 
 import com.kauri.harddrop.Tetromino;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -33,6 +34,7 @@ public class PieceSequence
 	private int current = -1;
 	private int preview = +0;
 	private List<Tetromino> pieces = new ArrayList<>();
+	private List<List<Tetromino>> candidates = new ArrayList<>();
 
 	private PieceSelector selector;
 
@@ -45,6 +47,7 @@ public class PieceSequence
 		preview = +0;
 
 		pieces.clear();
+		candidates.clear();
 	}
 
 	public void advance() {
@@ -52,7 +55,7 @@ public class PieceSequence
 		preview++;
 
 		while (pieces.size() <= preview) {
-			pieces.add(selector.getNextPiece());
+			draw();
 		}
 	}
 
@@ -68,4 +71,71 @@ public class PieceSequence
 	public Tetromino peekPreview() {
 		return pieces.get(preview);
 	}
+
+	/**
+	 * Retrieves an upcoming piece without advancing the sequence. Pieces which have not been
+	 * selected yet are drawn from the selector now and kept for when the sequence advances to them,
+	 * so peeking past the preview fixes those pieces ahead of time. This is refused for selectors
+	 * which cannot draw ahead, see {@link #canPeek}.
+	 *
+	 * @param offset The number of pieces after the current piece.
+	 *
+	 * @return The upcoming piece.
+	 *
+	 * @throws IllegalStateException If the piece has not been drawn and the selector cannot draw
+	 *                               ahead.
+	 */
+	public Tetromino peek(int offset) {
+		if (!canPeek(offset)) {
+			throw new IllegalStateException("The piece " + offset + " after the current piece cannot be drawn yet.");
+		}
+
+		while (pieces.size() <= current + offset) {
+			draw();
+		}
+
+		return pieces.get(current + offset);
+	}
+
+	/**
+	 * Determines whether an upcoming piece can be peeked. This is the case for pieces which have
+	 * already been drawn, such as the preview, and for every piece if the selector can draw ahead.
+	 *
+	 * @param offset The number of pieces after the current piece.
+	 *
+	 * @return <tt>true</tt> if the piece can be peeked.
+	 */
+	public boolean canPeek(int offset) {
+		return current + offset < pieces.size() || selector.canDrawAhead();
+	}
+
+	/**
+	 * Determines which pieces may appear at a position of the sequence, as far as can be told
+	 * from the pieces before it. A piece which has already been drawn from the selector is not
+	 * revealed by this. Only the position just after the drawn pieces can be narrowed down by the
+	 * selector, so positions further ahead may hold any tetromino.
+	 *
+	 * @param offset The number of pieces after the current piece.
+	 *
+	 * @return The candidate pieces, each equally likely.
+	 */
+	public List<Tetromino> getCandidates(int offset) {
+		if (current + offset < candidates.size()) {
+			return candidates.get(current + offset);
+		}
+
+		if (current + offset == candidates.size()) {
+			return selector.getCandidates();
+		}
+
+		return Arrays.asList(Tetromino.tetrominoes);
+	}
+
+	/**
+	 * Draws the next piece from the selector, remembering what it could have been.
+	 */
+	private void draw() {
+		candidates.add(selector.getCandidates());
+		pieces.add(selector.getNextPiece());
+	}
 }
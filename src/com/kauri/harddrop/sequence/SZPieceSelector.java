@@ -23,6 +23,8 @@ package com.kauri.harddrop.sequence;
 
 import com.kauri.harddrop.Shape;
 import com.kauri.harddrop.Tetromino;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Eric Fritz
@@ -33,6 +35,11 @@ public class SZPieceSelector implements PieceSelector
 
 	@Override
 	public Tetromino getNextPiece() {
-		return Tetromino.tetrominoes.get(counter++ % 2 == 0 ? Shape.S : Shape.Z);
+		return Tetromino.get(counter++ % 2 == 0 ? Shape.S : Shape.Z);
+	}
+
+	@Override
+	public List<Tetromino> getCandidates() {
+		return Collections.singletonList(Tetromino.get(counter % 2 == 0 ? Shape.S : Shape.Z));
 	}
 }
@@ -22,6 +22,8 @@
 package com.kauri.harddrop.sequence;
 
 import com.kauri.harddrop.Tetromino;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -46,10 +48,23 @@ public class ShufflePieceSelector implements PieceSelector
 	@Override
 	public Tetromino getNextPiece() {
 		if (bag.size() == 0) {
-			bag.addAll(Tetromino.tetrominoes.values());
+			bag.addAll(Arrays.asList(Tetromino.tetrominoes));
 			Collections.shuffle(bag, random);
 		}
 
 		return bag.remove(0);
 	}
+
+	/**
+	 * Each bag holds every tetromino once, so the next piece is one of those left in the current
+	 * bag, or any tetromino once the bag is empty.
+	 */
+	@Override
+	public List<Tetromino> getCandidates() {
+		if (bag.size() == 0) {
+			return Arrays.asList(Tetromino.tetrominoes);
+		}
+
+		return new ArrayList<>(bag);
+	}
 }
@@ -44,7 +44,7 @@ public class WorstPieceSelector implements PieceSelector
 		double worst = Double.POSITIVE_INFINITY;
 		Tetromino piece = null;
 
-		for (Tetromino tetromino : Tetromino.tetrominoes.values()) {
+		for (Tetromino tetromino : Tetromino.tetrominoes) {
 			int x = context.getBoard().getSpawnX(tetromino);
 			int y = context.getBoard().getSpawnY(tetromino);
 
@@ -58,4 +58,13 @@ public class WorstPieceSelector implements PieceSelector
 
 		return piece;
 	}
+
+	/**
+	 * The worst piece depends on the board, which is not final until the pieces ahead of it have
+	 * been placed.
+	 */
+	@Override
+	public boolean canDrawAhead() {
+		return false;
+	}
 }